@@ -0,0 +1,9 @@
+#!/bin/sh
+# forwards the request to a running JanusServer (see run-server in the makefile) instead of starting a new JVM
+echo "Content-type: text/html"
+echo
+if [ "$REQUEST_METHOD" = "POST" ]; then
+  curl -s --data-binary @- "http://127.0.0.1:${JANUS_PORT:-8080}/janus.cgi"
+else
+  curl -s "http://127.0.0.1:${JANUS_PORT:-8080}/janus.cgi?$QUERY_STRING"
+fi
@@ -0,0 +1,132 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Hashtable;
+
+/**
+ * Decodes application/x-www-form-urlencoded data (a POST body or QUERY_STRING)
+ * in one pass, straight from the bytes into the field values.  Bytes map to
+ * chars one to one (iso-8859-1), as in cgi_lib.  Reads at most the content
+ * length, and rejects bodies or fields over the size limits.
+ */
+class FormDecoder {
+
+  /** largest form accepted in bytes, set with -Djanus.maxformbytes */
+  static long sMaxFormBytes = Long.getLong("janus.maxformbytes", 64L << 20).longValue();
+  /** largest field value accepted in chars, set with -Djanus.maxfieldchars */
+  static int sMaxFieldChars = Integer.getInteger("janus.maxfieldchars", 32 << 20).intValue();
+
+  static class FormTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+    FormTooLargeException(String message) { super(message); }
+  }
+
+  private final Hashtable<String, String> fForm = new Hashtable<String, String>();
+  // reused for every field
+  private final StringBuffer fKey = new StringBuffer();
+  private final StringBuffer fValue = new StringBuffer();
+  private StringBuffer fCurrent = fKey;
+  // hex digits of a pending %xx escape, -1 when there is none
+  private int fEscapeDigits = -1;
+  private int fEscapeValue = 0;
+  private char fEscapeFirst;
+  private long fBytes = 0;
+
+  /**
+   * @param length content length in bytes, or -1 to read until the end of in
+   * @return the fields of the form read from in
+   */
+  static Hashtable<String, String> decode(InputStream in, long length) throws IOException {
+    if (length > sMaxFormBytes)
+      throw new FormTooLargeException("Form of " + length + " bytes is over the limit of " + sMaxFormBytes + " bytes.");
+    FormDecoder d = new FormDecoder();
+    byte[] buffer = new byte[8192];
+    long remaining = (length < 0 ? Long.MAX_VALUE : length);
+    while (remaining > 0) {
+      int i = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (i < 0) break;
+      d.add(buffer, 0, i);
+      remaining -= i;
+    }
+    return d.finish();
+  }
+
+  /**
+   * @return the fields of the form in s, null gives an empty form
+   */
+  static Hashtable<String, String> decode(String s) throws IOException {
+    if (s != null && s.length() > sMaxFormBytes)
+      throw new FormTooLargeException("Form of " + s.length() + " bytes is over the limit of " + sMaxFormBytes + " bytes.");
+    FormDecoder d = new FormDecoder();
+    if (s != null) {
+      for (int i = 0; i < s.length(); i++) d.add(s.charAt(i) & 0xFF);
+    }
+    return d.finish();
+  }
+
+  void add(byte[] bytes, int offset, int length) throws IOException {
+    fBytes += length;
+    if (fBytes > sMaxFormBytes)
+      throw new FormTooLargeException("Form is over the limit of " + sMaxFormBytes + " bytes.");
+    for (int i = offset; i < offset + length; i++) add(bytes[i] & 0xFF);
+  }
+
+  private void add(int b) throws IOException {
+    if (fEscapeDigits >= 0) {
+      int digit = Character.digit((char) b, 16);
+      if (digit >= 0) {
+        fEscapeValue = fEscapeValue * 16 + digit;
+        if (++fEscapeDigits < 2) { fEscapeFirst = (char) b; return; }
+        fEscapeDigits = -1;
+        append((char) fEscapeValue);
+        return;
+      }
+      // not an escape after all, keep it as written
+      flushEscape();
+    }
+    if (b == '\r' || b == '\n') {
+      // line breaks are not part of encoded data, cgi_lib dropped them too
+    } else if (b == '&') {
+      endField();
+    } else if (b == '=' && fCurrent == fKey) {
+      fCurrent = fValue;
+    } else if (b == '%') {
+      fEscapeDigits = 0;
+      fEscapeValue = 0;
+    } else {
+      append(b == '+' ? ' ' : (char) b);
+    }
+  }
+
+  private void flushEscape() throws IOException {
+    append('%');
+    if (fEscapeDigits == 1) append(fEscapeFirst);
+    fEscapeDigits = -1;
+  }
+
+  private void append(char c) throws IOException {
+    if (fCurrent.length() >= sMaxFieldChars)
+      // the field name is client data, keep it out of the message
+      throw new FormTooLargeException("Form field " + (fCurrent == fKey ? "name" : "value") + " is over the limit of " + sMaxFieldChars + " chars.");
+    fCurrent.append(c);
+  }
+
+  private void endField() {
+    if (fKey.length() > 0) fForm.put(fKey.toString(), fValue.toString());
+    fKey.setLength(0);
+    fValue.setLength(0);
+    fCurrent = fKey;
+  }
+
+  Hashtable<String, String> finish() throws IOException {
+    if (fEscapeDigits >= 0) flushEscape();
+    endField();
+    return fForm;
+  }
+}
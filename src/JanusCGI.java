@@ -15,9 +15,11 @@ class JanusCGI {
     public static void main( String args[] ) {
         System.out.println(cgi_lib.Header());
 
-        Hashtable<String, String> formData = cgi_lib.ReadParse(System.in);
         try {
+          Hashtable<String, String> formData = cgi_lib.ReadParseChecked(System.in);
           MFSearch.mainFromServlet(".", new PrintWriter(System.out,true), formData);
+        } catch (FormDecoder.FormTooLargeException e) {
+            System.out.println("<p>" + e.getMessage());
         } catch (IOException e) {
             System.out.println(e);
         }
@@ -7,13 +7,36 @@
 
 import java.io.IOException;
 
+import janusengine.IndexUtils;
 import janusengine.MFSearchServlet;
+import janusengine.NGram;
 
 class JanusCreateIndex {
+    static final String sUsage = JanusCreateIndex.class.getName() + " [update] [hashterms] [rollinghash] [threads [ramBufferMB [mergeFactor [maxMergeMB]]]]";
+
     public static void main( String args[] ) {
+        // "update" only reindexes data files changed since the last build
+        boolean update = false;
+        // "hashterms" and "rollinghash" set the index format of a build, updates keep the format the index was built with
+        int options = 0;
+        for (; options < args.length; options++) {
+            if (args[options].equals("update")) update = true;
+            else if (args[options].equals("hashterms")) NGram.sHashTerms = true;
+            else if (args[options].equals("rollinghash")) NGram.sRollingHash = true;
+            else break;
+        }
+        if (options > 0) { String[] a = new String[args.length-options]; System.arraycopy(args, options, a, 0, a.length); args = a; }
+        if (args.length > 4) {
+            System.err.println(sUsage);
+            System.exit(1);
+        }
+        if (args.length >= 1) IndexUtils.sIndexThreads = Integer.parseInt(args[0]);
+        if (args.length >= 2) IndexUtils.sRAMBufferSizeMB = Double.parseDouble(args[1]);
+        if (args.length >= 3) IndexUtils.sMergeFactor = Integer.parseInt(args[2]);
+        if (args.length >= 4) IndexUtils.sMaxMergeMB = Double.parseDouble(args[3]);
         try {
           MFSearchServlet mfsearch = new MFSearchServlet(".");
-          mfsearch.createIndex();
+          if (update) mfsearch.updateIndex(); else mfsearch.createIndex();
         } catch (IOException e) {
             System.out.println(e);
         }
@@ -0,0 +1,32 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+import janusengine.MFSearchServlet;
+
+/**
+ * Precomputes the overlaps between the datasets for the cross-dataset reports
+ * (queryfrom=mf+lp etc.), rerun after the index is rebuilt or updated.
+ */
+class JanusCreateOverlaps {
+    static final String sUsage = JanusCreateOverlaps.class.getName() + " [threads]";
+
+    public static void main( String args[] ) {
+        if (args.length > 1) {
+            System.err.println(sUsage);
+            System.exit(1);
+        }
+        if (args.length >= 1) MFSearchServlet.sCrossDatasetThreads = Integer.parseInt(args[0]);
+        try {
+          long start = System.currentTimeMillis();
+          MFSearchServlet mfsearch = new MFSearchServlet(".");
+          int pairs = mfsearch.createCrossOverlaps();
+          System.out.println("Stored " + pairs + " overlapping quotation pairs in " + (System.currentTimeMillis() - start) + " milliseconds");
+        } catch (Exception e) {
+            System.out.println(e);
+        }
+    }
+}
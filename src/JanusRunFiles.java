@@ -6,8 +6,8 @@
  */
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
-import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
 
 import janusengine.MFSearchServlet;
@@ -15,56 +15,142 @@ import janusengine.NGramUtils;
 
 /**
  * Reads in file names from stdin and runs them through Janus, outputting the results to stdout.
+ * One engine is shared by a pool of worker threads, results are still output in input order.
  */
 class JanusRunFiles {
+  static final String sUsage = JanusRunFiles.class.getName() + " [quote] [threads]";
+
+  /** counts the chars read through it, so files need not be read into a String first */
+  static class CountingReader extends FilterReader {
+    long fCount = 0;
+    CountingReader(Reader in) { super(in); }
+    public int read() throws IOException { int c = super.read(); if (c >= 0) fCount++; return c; }
+    public int read(char[] cbuf, int off, int len) throws IOException { int i = super.read(cbuf, off, len); if (i > 0) fCount += i; return i; }
+  }
+
+  static class Result {
+    String fOutput;
+    long fSize;
+  }
+
+  static Result runFile(MFSearchServlet mfsearch, int fn, String filename, boolean bOutputQuotation) {
+    Result r = new Result();
+    StringWriter result = new StringWriter();
+    PrintWriter rout = new PrintWriter(result);
+    try {
+      // read in and clean file content
+      String query;
+      CountingReader cr = new CountingReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8));
+      try {
+        query = NGramUtils.readInFileAndClean(cr, "<br>\n");
+      } finally {
+        cr.close();
+      }
+      r.fSize = cr.fCount;
+      // process
+      StringWriter sr = new StringWriter();
+      PrintWriter out = new PrintWriter(sr,true);
+      Hashtable<String,String> formData = new Hashtable<String,String>();
+      formData.put("query", query);
+      formData.put("displayformat", "excerpt");
+      int matches = mfsearch.runServletSearch(out, formData, false);
+      if (matches > 0) {
+        rout.println();
+        rout.println("filenumber\t" + fn + "\t<br>");
+        rout.println("file\t" + filename + "\t<br>");
+        rout.println("size\t" + r.fSize + "\t<br>");
+        rout.println("matches\t" + matches + "\t" + filename + "\t<br>");
+        if (bOutputQuotation) rout.print(sr);
+      } else {
+        rout.println("nomatch\t" + filename + "\t<br>");
+      }
+    } catch (IOException e) {
+      rout.println(e);
+    }
+    rout.flush();
+    r.fOutput = result.toString();
+    return r;
+  }
+
   public static void main( String args[] ) {
     boolean bOutputQuotation = false;
-    for (int i = 0; i < args.length; i++) { if (args[i].equals("quote")) bOutputQuotation = true; }
+    int threads = Runtime.getRuntime().availableProcessors();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("quote")) bOutputQuotation = true;
+      else if (args[i].matches("[0-9]+")) threads = Math.max(1, Integer.parseInt(args[i]));
+      else { System.err.println(sUsage); System.exit(1); }
+    }
+    final boolean bQuote = bOutputQuotation;
+
+    // one engine and warm searcher for all files
+    final MFSearchServlet mfsearch;
+    try {
+      mfsearch = new MFSearchServlet(".");
+      mfsearch.createIndex();
+    } catch (IOException e) {
+      System.out.println(e);
+      return;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    // results waiting to be output in order, bounded so a long file list does not pile up in memory
+    LinkedList<Future<Result>> pending = new LinkedList<Future<Result>>();
+    LinkedList<String> pendingNames = new LinkedList<String>();
+    int window = threads * 4;
+    long start = System.currentTimeMillis();
+    long[] totals = new long[2]; // files, chars
 
     int fn = 0;
     BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-    for (;;) {
-      // get file name
-      String filename = "";
-      try {
-        filename = in.readLine();
-        if (filename == null) break;
-      } catch (IOException e) {
-        System.out.println(e);
-        break;
-      }
-
-      fn++;
-      
-      try {
-        // read in file content
-        // TODO: pass content without reading in.  also extract file size.
-        String content = new String(Files.readAllBytes(Paths.get(filename)), StandardCharsets.UTF_8);
-        // process
-        //PrintWriter out = new PrintWriter(System.out,true);
-        StringWriter sr = new StringWriter();
-        PrintWriter out = new PrintWriter(sr,true);
-        Hashtable<String,String> formData = new Hashtable<String,String>();
-        formData.put("query", NGramUtils.readInFileAndClean(new StringReader(content), "<br>\n"));
-        formData.put("displayformat", "excerpt");
-        MFSearchServlet mfsearch = new MFSearchServlet(".");
-        int matches = mfsearch.runServletSearch(out, formData, false);
-        if (matches > 0) {
-          System.out.println();
-          System.out.println("filenumber\t" + fn + "\t<br>");
-          System.out.println("file\t" + filename + "\t<br>");
-          System.out.println("size\t" + content.length() + "\t<br>");
-          System.out.println("matches\t" + matches + "\t" + filename + "\t<br>");
-          if (bOutputQuotation) System.out.print(sr);
-        } else {
-          System.out.println("nomatch\t" + filename + "\t<br>");
+    try {
+      for (;;) {
+        // get file name
+        String filename = "";
+        try {
+          filename = in.readLine();
+          if (filename == null) break;
+        } catch (IOException e) {
+          System.out.println(e);
+          break;
         }
-        System.err.println("" + fn + "\t" + filename);
 
-        //MFSearch.mainFromServlet(".", new PrintWriter(System.out,true), "", content, "excerpt");
-      } catch (IOException e) {
-        System.out.println(e);
+        fn++;
+        final int n = fn;
+        final String f = filename;
+        pending.add(pool.submit(new Callable<Result>() {
+          public Result call() { return runFile(mfsearch, n, f, bQuote); }
+        }));
+        pendingNames.add(filename);
+        if (pending.size() >= window) outputNext(pending, pendingNames, totals, start);
       }
+      while (!pending.isEmpty()) outputNext(pending, pendingNames, totals, start);
+    } finally {
+      pool.shutdownNow();
+    }
+
+    long ms = Math.max(1, System.currentTimeMillis() - start);
+    System.err.println("done " + totals[0] + " files, " + totals[1] + " chars in " + ms + " ms ("
+        + (totals[0] * 1000 / ms) + " files/s, " + (totals[1] * 1000 / ms / 1024) + " KB/s) with " + threads + " threads");
+  }
+
+  static void outputNext(LinkedList<Future<Result>> pending, LinkedList<String> pendingNames, long[] totals, long start) {
+    String filename = pendingNames.removeFirst();
+    Result r;
+    try {
+      r = pending.removeFirst().get();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    System.out.print(r.fOutput);
+    System.out.flush();
+    totals[0]++;
+    totals[1] += r.fSize;
+    System.err.println("" + totals[0] + "\t" + filename);
+    if (totals[0] % 100 == 0) {
+      long ms = Math.max(1, System.currentTimeMillis() - start);
+      System.err.println("progress " + totals[0] + " files in " + ms + " ms (" + (totals[0] * 1000 / ms) + " files/s)");
     }
   }
 }
@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Hashtable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import janusengine.MFSearch;
+import janusengine.MFSearchServlet;
+
+/**
+ * Long running replacement for JanusCGI.  Keeps one engine (index, searcher and
+ * mappings) warm and answers requests on a local http port, so the cgi script
+ * only has to forward the request instead of starting a new JVM each time.
+ */
+class JanusServer {
+
+  static final String sUsage = JanusServer.class.getName() + " [port [threads]]";
+
+  // iso-8859-1 maps bytes to chars one to one, which is what cgi_lib does
+  static final String sCharset = "ISO-8859-1";
+
+  static class SearchHandler implements HttpHandler {
+    final MFSearchServlet fSearch;
+
+    SearchHandler(MFSearchServlet search) { fSearch = search; }
+
+    public void handle(HttpExchange t) throws IOException {
+      try {
+        Hashtable<String, String> formData;
+        try {
+          if ("POST".equalsIgnoreCase(t.getRequestMethod())) {
+            String length = t.getRequestHeaders().getFirst("Content-Length");
+            formData = FormDecoder.decode(t.getRequestBody(), (length != null ? Long.parseLong(length.trim()) : -1));
+          } else {
+            formData = FormDecoder.decode(t.getRequestURI().getRawQuery());
+          }
+        } catch (NumberFormatException e) {
+          sendError(t, 400, "Invalid Content-Length.");
+          return;
+        } catch (FormDecoder.FormTooLargeException e) {
+          sendError(t, 413, e.getMessage());
+          return;
+        }
+
+        t.getResponseHeaders().set("Content-Type", "text/html");
+        t.sendResponseHeaders(200, 0);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(t.getResponseBody(), sCharset), false);
+        MFSearch.mainFromServlet(".", fSearch, out, formData);
+        out.println(cgi_lib.HtmlBot());
+        out.flush();
+      } catch (RuntimeException e) {
+        e.printStackTrace(System.err);
+      } finally {
+        t.close();
+      }
+    }
+  }
+
+  static void sendError(HttpExchange t, int code, String text) throws IOException {
+    byte[] message = ("<html><body><p>" + text + "</body></html>\n").getBytes(sCharset);
+    t.getResponseHeaders().set("Content-Type", "text/html");
+    t.sendResponseHeaders(code, message.length);
+    t.getResponseBody().write(message);
+  }
+
+  public static void main( String args[] ) throws Exception {
+    if (args.length > 2) {
+      System.err.println(sUsage);
+      System.exit(1);
+    }
+    int port = (args.length >= 1 ? Integer.parseInt(args[0]) : 8080);
+    int threads = (args.length >= 2 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors());
+
+    // repeat requests reach the same engine, so keep their result pages (set with -Djanus.resultcachechars)
+    MFSearchServlet.sResultCacheChars = Integer.getInteger("janus.resultcachechars", 8 << 20).intValue();
+
+    // build or check the index once up front
+    MFSearchServlet mfsearch = new MFSearchServlet(".");
+    mfsearch.createIndex();
+
+    // only listen locally, the cgi script forwards requests to us
+    HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+    server.createContext("/", new SearchHandler(mfsearch));
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    server.setExecutor(pool);
+    server.start();
+    System.err.println("Janus server listening on 127.0.0.1:" + port + " with " + threads + " threads.");
+  }
+}
@@ -78,62 +78,35 @@ class cgi_lib
    */
   public static Hashtable ReadParse(InputStream inStream)
   {
-      Hashtable form_data = new Hashtable();
-
-      String inBuffer = "";
-
-      if (MethGet())
-      {
-          inBuffer = System.getProperty("cgi.query_string");
-      }
-      else
+      try
       {
-          //
-          //  TODO:  I should probably use the cgi.content_length property when
-          //         reading the input stream and read only that number of
-          //         bytes.  The code below does not use the content length
-          //         passed in through the CGI API.
-          //
-          DataInput d = new DataInputStream(inStream);
-          String line;
-          try
-          {
-              while((line = d.readLine()) != null)
-              {
-                  inBuffer = inBuffer + line;
-              }
-          }
-          catch (IOException ignored) { }
+          return ReadParseChecked(inStream);
       }
+      catch (IOException ignored) { }
+      return new Hashtable<String, String>();
+  }
 
-      //
-      //  Split the name value pairs at the ampersand (&)
-      //
-      StringTokenizer pair_tokenizer = new StringTokenizer(inBuffer,"&");
+  /**
+   *
+   * Same as ReadParse, but reports a form that could not be read or
+   * is over the size limits (see FormDecoder) instead of ignoring it.
+   * The POST body is read in one pass and only up to the
+   * cgi.content_length property when it is set.
+   *
+   */
+  public static Hashtable<String, String> ReadParseChecked(InputStream inStream) throws IOException
+  {
+      if (MethGet())
+          return FormDecoder.decode(System.getProperty("cgi.query_string"));
 
-      while (pair_tokenizer.hasMoreTokens())
+      long length = -1;
+      String contentLength = System.getProperty("cgi.content_length");
+      if (contentLength != null && contentLength.trim().length() > 0)
       {
-          String pair = urlDecode(pair_tokenizer.nextToken());
-          //
-          // Split into key and value
-          //
-          StringTokenizer keyval_tokenizer = new StringTokenizer(pair,"=");
-          String key = new String();
-          String value = new String();
-          if (keyval_tokenizer.hasMoreTokens())
-            key = keyval_tokenizer.nextToken();
-          else ; // ERROR - shouldn't ever occur
-          if (keyval_tokenizer.hasMoreTokens())
-            value = keyval_tokenizer.nextToken();
-          else ; // ERROR - shouldn't ever occur
-          //
-          // Add key and associated value into the form_data Hashtable
-          //
-          form_data.put(key,value);
+          try { length = Long.parseLong(contentLength.trim()); }
+          catch (NumberFormatException ignored) { }
       }
-
-      return form_data;
-
+      return FormDecoder.decode(inStream, length);
   }
 
   /**
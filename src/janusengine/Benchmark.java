@@ -0,0 +1,328 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+package janusengine;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Timing runs of the search stages over synthetic latin-like text: winnowing,
+ * subword mapping, match locations (including growing matches), hit sections,
+ * index search and full result pages.  Each stage reports throughput, latency
+ * percentiles and bytes allocated per run.
+ */
+public class Benchmark {
+
+  static final String[] sWords = ("amor dei caritas virtus anima corpus peccatum gratia fides spes iustitia sapientia mundus vita mors homo "
+      + "deus christus ecclesia veritas humilitas superbia pax terra caelum lux tenebrae bonum malum quia enim autem sed non est sunt "
+      + "ergo itaque nihil mihi qui quae quod cum ubi sicut etiam propter contra sine semper numquam oculus cor mens ratio voluntas").split(" ");
+
+  /** dataset directory of the synthetic corpus */
+  static final String sDataset = "bench";
+
+  /**
+   * @return about size chars of random sentences built from sWords
+   */
+  static public String makeText(int size, long seed) {
+    Random r = new Random(seed);
+    StringBuffer sb = new StringBuffer(size + 100);
+    while (sb.length() < size) {
+      int words = 6 + r.nextInt(12);
+      for (int i = 0; i < words; i++) {
+        String w = sWords[r.nextInt(sWords.length)];
+        if (i == 0) w = Character.toUpperCase(w.charAt(0)) + w.substring(1);
+        sb.append(w);
+        sb.append(i + 1 < words ? " " : ". ");
+      }
+      if (r.nextInt(4) == 0) sb.append("<br>\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return about size chars of random text with quotations copied in, about
+   *         one for every 1000 chars
+   */
+  static public String makeQuery(int size, String[] quotations, long seed) {
+    Random r = new Random(seed);
+    StringBuffer sb = new StringBuffer(size + 1000);
+    while (sb.length() < size) {
+      sb.append(makeText(500, r.nextLong()));
+      String q = quotations[r.nextInt(quotations.length)];
+      sb.append(q.substring(0, Math.min(q.length(), 300 + r.nextInt(300))));
+      sb.append(" ");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return count quotations of 200 to 800 chars
+   */
+  static public String[] makeQuotations(int count, long seed) {
+    Random r = new Random(seed);
+    String[] result = new String[count];
+    for (int i = 0; i < count; i++) {
+      result[i] = makeText(200 + r.nextInt(600), r.nextLong()).replace("<br>\n", "");
+    }
+    return result;
+  }
+
+  /**
+   * @return best time in ms of reps winnowing runs over data
+   */
+  static public double timeWinnow(String data, boolean rollingHash, int reps) {
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < reps; i++) {
+      long start = System.nanoTime();
+      NGram.Winnowing w = new NGram.Winnowing(NGram.sWindowSize, NGram.sNGramSize, rollingHash);
+      w.winnow(data);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best / 1e6;
+  }
+
+  // -----------------------
+  // stage runs and statistics
+  // -----------------------
+
+  interface Stage {
+    void run() throws Exception;
+  }
+
+  static Method sAllocatedBytes;
+  static {
+    try {
+      // HotSpot only, allocation is reported as unknown elsewhere
+      sAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+    } catch (Exception e) {}
+  }
+
+  /**
+   * @return bytes allocated so far by the current thread, or -1 if unknown
+   */
+  static long getAllocatedBytes() {
+    if (sAllocatedBytes == null) return -1;
+    try {
+      return ((Long) sAllocatedBytes.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId())).longValue();
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Runs stage warmup times untimed, then reps times, and prints one line of
+   * ops/s, latency percentiles (ms) and MB allocated per run.
+   */
+  static void measure(String name, Stage stage, int warmup, int reps) throws Exception {
+    for (int i = 0; i < warmup; i++) stage.run();
+    long[] times = new long[reps];
+    long allocStart = getAllocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < reps; i++) {
+      long t = System.nanoTime();
+      stage.run();
+      times[i] = System.nanoTime() - t;
+    }
+    long total = System.nanoTime() - start;
+    long allocEnd = getAllocatedBytes();
+    Arrays.sort(times);
+    String alloc = (allocStart < 0 || allocEnd < 0 ? "?" : format((allocEnd - allocStart) / 1e6 / reps));
+    System.out.println("  " + pad(name, 10) + pad(format(reps / (total / 1e9)), 10) + pad(format(percentile(times, 50)), 10)
+        + pad(format(percentile(times, 90)), 10) + pad(format(percentile(times, 99)), 10) + pad(format(times[reps - 1] / 1e6), 10) + alloc);
+  }
+
+  static void printHeader(String title) {
+    System.out.println(title);
+    System.out.println("  " + pad("stage", 10) + pad("ops/s", 10) + pad("p50 ms", 10) + pad("p90 ms", 10) + pad("p99 ms", 10) + pad("max ms", 10) + "MB/op");
+  }
+
+  static double percentile(long[] sorted, int p) {
+    return sorted[Math.min(sorted.length - 1, (sorted.length * p) / 100)] / 1e6;
+  }
+
+  static String format(double d) {
+    return (d >= 100 ? String.valueOf(Math.round(d)) : String.valueOf(Math.round(d * 1000) / 1000.0));
+  }
+
+  static String pad(String s, int width) {
+    StringBuffer sb = new StringBuffer(s);
+    while (sb.length() < width) sb.append(' ');
+    return sb.append(' ').toString();
+  }
+
+  /** discards everything written, so page rendering is timed without I/O */
+  static class NullWriter extends Writer {
+    public void write(char[] cbuf, int off, int len) {}
+    public void flush() {}
+    public void close() {}
+  }
+
+  // -----------------------
+  // stages
+  // -----------------------
+
+  static void runTextStages(final String query, final String[] hits, int reps) throws Exception {
+    final String mappings = NGram.sBaseDir + NGram.sSubwordMappingsFile;
+    final NGram.Winnowing wQuery = new NGram.Winnowing();
+    wQuery.winnow(query);
+    final NGram.Fingerprints[] fingerprints = new NGram.Fingerprints[hits.length];
+    for (int i = 0; i < hits.length; i++) {
+      NGram.Winnowing w = new NGram.Winnowing();
+      w.winnow(hits[i]);
+      fingerprints[i] = NGram.Fingerprints.create(w);
+    }
+    Vector<MFSearch.HitRanges> queryOverlaps = new Vector<MFSearch.HitRanges>();
+    for (int i = 0; i < hits.length; i++) {
+      MFSearchServlet.FullHit fullHit = new MFSearchServlet.FullHit();
+      MFSearch.getMatchLocations(query, wQuery, hits[i], fingerprints[i], fullHit.queryOverlaps, fullHit.hitOverlaps);
+      queryOverlaps.add(fullHit.queryOverlaps);
+    }
+    final MFSearch.HitRanges allQueryOverlaps = MFSearch.HitRanges.union(queryOverlaps);
+
+    printHeader("query " + query.length() + " chars, " + hits.length + " hits, " + allQueryOverlaps.fSize + " overlaps (n="
+        + NGram.sNGramSize + ", w=" + NGram.sWindowSize + ")");
+    int warmup = Math.max(2, reps / 5);
+    measure("map", new Stage() {
+      public void run() throws Exception {
+        NGramUtils.BaseReader r = new NGramUtils.MFReader(new NGramUtils.ReaderToLocationReader(new StringReader(query)), mappings);
+        char[] buffer = new char[4096];
+        while (r.read(buffer, 0, buffer.length) >= 0) {}
+      }
+    }, warmup, reps);
+    measure("winnow", new Stage() {
+      public void run() {
+        new NGram.Winnowing().winnow(query);
+      }
+    }, warmup, reps);
+    measure("match", new Stage() {
+      public void run() {
+        for (int i = 0; i < hits.length; i++) {
+          MFSearchServlet.FullHit fullHit = new MFSearchServlet.FullHit();
+          MFSearch.getMatchLocations(query, wQuery, hits[i], fingerprints[i], fullHit.queryOverlaps, fullHit.hitOverlaps);
+        }
+      }
+    }, warmup, reps);
+    measure("sections", new Stage() {
+      public void run() {
+        MFSearchServlet.getHitSections(query, allQueryOverlaps);
+      }
+    }, warmup, reps);
+  }
+
+  /**
+   * Writes the quotations as data files under baseDir and builds its index.
+   */
+  static MFSearchServlet makeIndex(File baseDir, String[] quotations) throws IOException {
+    File dataDir = new File(baseDir, "data" + File.separator + sDataset);
+    dataDir.mkdirs();
+    for (int i = 0; i < quotations.length; i++) {
+      FileWriter out = new FileWriter(new File(dataDir, "auctor " + sDataset + (i / 26) + " " + (char) ('a' + i % 26) + ".txt"));
+      out.write(quotations[i] + "\n<cite>Auctor, liber " + (i % 9 + 1) + "</cite>\n");
+      out.close();
+    }
+    MFSearchServlet mfsearch = new MFSearchServlet(baseDir.getPath());
+    mfsearch.createIndex();
+    return mfsearch;
+  }
+
+  static void runSearchStages(final MFSearchServlet mfsearch, final String query, int reps) throws Exception {
+    final int[] hits = new int[1];
+    final MFSearchServlet.FullHitHandler counter = new MFSearchServlet.FullHitHandler() {
+      public void start() {}
+      public void hit(MFSearchServlet.FullHit fullHit) { if (fullHit != null) hits[0]++; }
+    };
+    mfsearch.runQuery("+path:" + sDataset, "", query, Integer.MAX_VALUE, 0, counter);
+    printHeader("query " + query.length() + " chars, " + hits[0] + " hits");
+    int warmup = Math.max(2, reps / 5);
+    measure("search", new Stage() {
+      public void run() throws Exception {
+        mfsearch.runQuery("+path:" + sDataset, "", query, Integer.MAX_VALUE, 0, counter);
+      }
+    }, warmup, reps);
+    final Hashtable<String, String> formData = new Hashtable<String, String>();
+    formData.put("query", query);
+    formData.put("dataset", "+path:" + sDataset);
+    final PrintWriter out = new PrintWriter(new NullWriter());
+    measure("page", new Stage() {
+      public void run() {
+        mfsearch.runServletSearch(out, formData);
+      }
+    }, warmup, reps);
+  }
+
+  static public final String sUsage = Benchmark.class.getName() + " [text|search|all [queryChars[,queryChars...] [quotations [reps]]]]";
+
+  static public void main(String[] args) throws Exception {
+    if (args.length > 4) {
+      System.err.println(sUsage);
+      System.exit(1);
+    }
+    String stages = (args.length >= 1 ? args[0] : "all");
+    String[] sizes = (args.length >= 2 ? args[1] : "1000,100000,1000000").split(",");
+    int quotationCount = (args.length >= 3 ? Integer.parseInt(args[2]) : 10000);
+    int reps = (args.length >= 4 ? Integer.parseInt(args[3]) : 10);
+    NGram.sNGramSize = 18;
+    NGram.sWindowSize = 18;
+    MFSearchServlet.sResultCacheChars = 0; // time the searches, not the cache
+
+    String[] quotations = makeQuotations(quotationCount, 1);
+    boolean text = stages.equals("text") || stages.equals("all");
+    boolean search = stages.equals("search") || stages.equals("all");
+    if (!text && !search) {
+      System.err.println(sUsage);
+      System.exit(1);
+    }
+
+    if (text) {
+      // original and rolling ngram hashes
+      String data = makeText(1 << 20, 1);
+      timeWinnow(data, false, 2); // warm up
+      timeWinnow(data, true, 2);
+      double original = timeWinnow(data, false, reps);
+      double rolling = timeWinnow(data, true, reps);
+      System.out.println("winnow " + data.length() + " chars (n=" + NGram.sNGramSize + ", w=" + NGram.sWindowSize + ")");
+      System.out.println("  original hash " + original + " ms");
+      System.out.println("  rolling hash  " + rolling + " ms");
+      System.out.println("  speedup       " + (original / rolling));
+      // hits are the quotations copied into the query plus some that are not
+      for (int i = 0; i < sizes.length; i++) {
+        int size = Integer.parseInt(sizes[i]);
+        String[] hits = new String[Math.min(quotations.length, 200)];
+        System.arraycopy(quotations, 0, hits, 0, hits.length);
+        runTextStages(makeQuery(size, hits, 2), hits, reps);
+      }
+    }
+
+    if (search) {
+      File baseDir = File.createTempFile("janusbench", "");
+      baseDir.delete();
+      baseDir.mkdirs();
+      try {
+        long start = System.currentTimeMillis();
+        MFSearchServlet mfsearch = makeIndex(baseDir, quotations);
+        System.out.println("index " + quotations.length + " quotations in " + (System.currentTimeMillis() - start) + " ms");
+        for (int i = 0; i < sizes.length; i++) {
+          runSearchStages(mfsearch, makeQuery(Integer.parseInt(sizes[i]), quotations, 3), reps);
+        }
+        SearcherManager.get(baseDir.getPath() + File.separator + "index").close();
+      } finally {
+        NGramUtils.deleteRecursive(baseDir);
+      }
+    }
+  }
+}
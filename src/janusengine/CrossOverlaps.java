@@ -0,0 +1,195 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+package janusengine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Vector;
+
+/**
+ * Precomputed overlaps between the quotations of each dataset and those of
+ * the other datasets, as used by the cross-dataset reports (queryfrom=mf+lp
+ * etc.).  Written by an offline job into the index directory and only used
+ * while the index version and search settings are the ones it was computed
+ * with.
+ */
+public class CrossOverlaps {
+
+  static public final String sFileName = "overlaps.bin";
+  static final int sVersion = 1;
+
+  /** a hit of a source quotation: the hit quotation and the overlaps in both */
+  static public class Hit {
+    String path, name;
+    int[] queryOverlaps; // start,end pairs in the source quotation
+    int[] hitOverlaps; // start,end pairs in the hit quotation
+  }
+
+  /** source quotations of one dataset in report order, with their hits */
+  static class Source {
+    String[] names;
+    Hit[][] hits;
+  }
+
+  final long fIndexVersion;
+  final String fSettings;
+  final HashMap<String, Source> fSources = new HashMap<String, Source>();
+
+  CrossOverlaps(long indexVersion, String settings) {
+    fIndexVersion = indexVersion;
+    fSettings = settings;
+  }
+
+  /** @return everything besides the index that changes which hits a query gets */
+  static String getSettings(EngineConfig config) {
+    return config.getWinnowingSettings() + " mappings=" + config.fSubwordMappingsFile + " separation=" + config.fMaxSeparation + " grow=" + config.fGrow
+        + " whitespace=" + config.fKeepWhitespace + " clauses=" + NGram.sMaxNGramClauses
+        + " minshared=" + MFSearchServlet.sMinSharedNGrams + " maxhits=" + MFSearchServlet.sMaxHits + " overlap=" + MFSearchServlet.sRankByOverlap
+        + " memory=" + MFSearchServlet.sMemoryCorpus;
+  }
+
+  /**
+   * records the hits of each source quotation
+   * @param fullhits hits of each source quotation
+   */
+  void put(String dataset, MFSearchServlet.DocQ[] sources, Vector<Vector<MFSearchServlet.FullHit>> fullhits) {
+    Source s = new Source();
+    s.names = new String[sources.length];
+    s.hits = new Hit[sources.length][];
+    for (int m = 0; m < sources.length; m++) {
+      s.names[m] = sources[m].name;
+      Vector<MFSearchServlet.FullHit> v = fullhits.get(m);
+      s.hits[m] = new Hit[v.size()];
+      for (int x = 0; x < v.size(); x++) {
+        MFSearchServlet.FullHit fullHit = v.get(x);
+        Hit h = new Hit();
+        h.path = fullHit.docq.path;
+        h.name = fullHit.docq.name;
+        h.queryOverlaps = fullHit.queryOverlaps.toPairs();
+        h.hitOverlaps = fullHit.hitOverlaps.toPairs();
+        s.hits[m][x] = h;
+      }
+    }
+    fSources.put(dataset, s);
+  }
+
+  /**
+   * @return hits of the quotations of dataset, or null if they were not
+   *         computed for these quotations
+   */
+  Hit[][] get(String dataset, MFSearchServlet.DocQ[] sources) {
+    Source s = fSources.get(dataset);
+    if (s == null || s.names.length != sources.length)
+      return null;
+    for (int m = 0; m < sources.length; m++) {
+      if (!s.names[m].equals(sources[m].name))
+        return null;
+    }
+    return s.hits;
+  }
+
+  /** write to a temporary file first so readers never see half a file */
+  void write(File file) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(sVersion);
+      out.writeLong(fIndexVersion);
+      out.writeUTF(fSettings);
+      out.writeInt(fSources.size());
+      for (Iterator<String> iter = fSources.keySet().iterator(); iter.hasNext();) {
+        String dataset = iter.next();
+        Source s = fSources.get(dataset);
+        out.writeUTF(dataset);
+        out.writeInt(s.names.length);
+        for (int m = 0; m < s.names.length; m++) {
+          out.writeUTF(s.names[m]);
+          out.writeInt(s.hits[m].length);
+          for (int x = 0; x < s.hits[m].length; x++) {
+            Hit h = s.hits[m][x];
+            out.writeUTF(h.path);
+            out.writeUTF(h.name);
+            writeInts(out, h.queryOverlaps);
+            writeInts(out, h.hitOverlaps);
+          }
+        }
+      }
+    } finally {
+      out.close();
+    }
+    file.delete();
+    if (!tmp.renameTo(file))
+      throw new IOException("Unable to rename " + tmp + " to " + file);
+  }
+
+  static void writeInts(DataOutputStream out, int[] a) throws IOException {
+    out.writeInt(a.length);
+    for (int i = 0; i < a.length; i++) out.writeInt(a[i]);
+  }
+
+  static int[] readInts(DataInputStream in) throws IOException {
+    int[] a = new int[in.readInt()];
+    for (int i = 0; i < a.length; i++) a[i] = in.readInt();
+    return a;
+  }
+
+  /**
+   * @param expectedSettings from getSettings(), of the engine reading the overlaps
+   * @return overlaps stored in file, or null if there are none for this
+   *         index version and settings
+   */
+  static CrossOverlaps read(File file, long indexVersion, String expectedSettings) {
+    if (!file.exists())
+      return null;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != sVersion || in.readLong() != indexVersion)
+          return null;
+        String settings = in.readUTF();
+        if (!settings.equals(expectedSettings))
+          return null;
+        CrossOverlaps co = new CrossOverlaps(indexVersion, settings);
+        int datasets = in.readInt();
+        for (int i = 0; i < datasets; i++) {
+          String dataset = in.readUTF();
+          Source s = new Source();
+          s.names = new String[in.readInt()];
+          s.hits = new Hit[s.names.length][];
+          for (int m = 0; m < s.names.length; m++) {
+            s.names[m] = in.readUTF();
+            s.hits[m] = new Hit[in.readInt()];
+            for (int x = 0; x < s.hits[m].length; x++) {
+              Hit h = new Hit();
+              h.path = in.readUTF();
+              h.name = in.readUTF();
+              h.queryOverlaps = readInts(in);
+              h.hitOverlaps = readInts(in);
+              s.hits[m][x] = h;
+            }
+          }
+          co.fSources.put(dataset, s);
+        }
+        return co;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      System.err.println("Warning: unable to read " + file + " (" + e.getMessage() + ").");
+      return null;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+package janusengine;
+
+/**
+ * Settings that winnowing, subword mapping and highlighting depend on.
+ * Immutable, so engines with different settings (e.g. several ngram and
+ * window sizes) can run queries concurrently in one process.  The statics in
+ * NGram, NGramUtils and MFSearch are only the defaults for new configs.
+ */
+public class EngineConfig {
+
+  public final String fBaseDir;
+  /** relative to fBaseDir */
+  public final String fSubwordMappingsFile;
+  public final int fNGramSize;
+  public final int fWindowSize;
+  public final boolean fRollingHash;
+  /** collapse whitespace to one space instead of dropping it */
+  public final boolean fKeepWhitespace;
+  /** largest gap between matches that highlighting joins */
+  public final int fMaxSeparation;
+  /** extend matches char by char past the ngrams */
+  public final boolean fGrow;
+  /** ngrams indexed as hash terms in NGram.sHashTermField rather than in contents */
+  public final boolean fHashTerms;
+
+  public EngineConfig(String baseDir, String subwordMappingsFile, int ngramSize, int windowSize, boolean rollingHash, boolean keepWhitespace,
+      int maxSeparation, boolean grow, boolean hashTerms) {
+    fBaseDir = baseDir;
+    fSubwordMappingsFile = subwordMappingsFile;
+    fNGramSize = ngramSize;
+    fWindowSize = windowSize;
+    fRollingHash = rollingHash;
+    fKeepWhitespace = keepWhitespace;
+    fMaxSeparation = maxSeparation;
+    fGrow = grow;
+    fHashTerms = hashTerms;
+  }
+
+  /**
+   * @return config from the current static defaults
+   */
+  static public EngineConfig getDefault() {
+    return new EngineConfig(NGram.sBaseDir, NGram.sSubwordMappingsFile, NGram.sNGramSize, NGram.sWindowSize, NGram.sRollingHash,
+        NGramUtils.sKeepWhitespace, MFSearch.sMaxSeparation, MFSearch.sGrow, NGram.sHashTerms);
+  }
+
+  /**
+   * @return copy with a different base directory and ngram and window sizes
+   */
+  public EngineConfig with(String baseDir, int ngramSize, int windowSize) {
+    return new EngineConfig(baseDir, fSubwordMappingsFile, ngramSize, windowSize, fRollingHash, fKeepWhitespace, fMaxSeparation, fGrow, fHashTerms);
+  }
+
+  /**
+   * @return copy with different winnowing settings
+   */
+  public EngineConfig with(int ngramSize, int windowSize, boolean rollingHash) {
+    return new EngineConfig(fBaseDir, fSubwordMappingsFile, ngramSize, windowSize, rollingHash, fKeepWhitespace, fMaxSeparation, fGrow, fHashTerms);
+  }
+
+  public String getSubwordMappingsPath() {
+    return fBaseDir + fSubwordMappingsFile;
+  }
+
+  /** @return the settings that decide which ngrams are picked, as stored with an index */
+  public String getWinnowingSettings() {
+    return "n=" + fNGramSize + " w=" + fWindowSize + " rolling=" + fRollingHash;
+  }
+
+  /**
+   * @return the settings an index has to be searched and updated with, as
+   *         recorded in its manifest
+   */
+  public String getIndexFormat() {
+    return getWinnowingSettings() + " hashterms=" + fHashTerms;
+  }
+
+  /**
+   * @param format as from getIndexFormat(), settings it does not give are kept
+   * @return copy with the settings of an index
+   */
+  public EngineConfig withIndexFormat(String format) {
+    int ngramSize = fNGramSize, windowSize = fWindowSize;
+    boolean rollingHash = fRollingHash, hashTerms = fHashTerms;
+    String[] settings = format.trim().split(" +");
+    for (int i = 0; i < settings.length; i++) {
+      int eq = settings[i].indexOf('=');
+      if (eq < 0)
+        continue;
+      String x = settings[i].substring(0, eq);
+      String y = settings[i].substring(eq + 1);
+      if (x.equals("n")) {
+        ngramSize = Integer.parseInt(y);
+      } else if (x.equals("w")) {
+        windowSize = Integer.parseInt(y);
+      } else if (x.equals("rolling")) {
+        rollingHash = y.equals("true");
+      } else if (x.equals("hashterms")) {
+        hashTerms = y.equals("true");
+      }
+    }
+    return new EngineConfig(fBaseDir, fSubwordMappingsFile, ngramSize, windowSize, rollingHash, fKeepWhitespace, fMaxSeparation, fGrow, hashTerms);
+  }
+}
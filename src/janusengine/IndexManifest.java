@@ -0,0 +1,170 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+package janusengine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Records the data files that went into an index (modification time, length
+ * and content hash), so an index update only has to touch the quotations whose
+ * files changed.  Keys are "path/file", where path is the dataset directory.
+ * Also records the format of the index (EngineConfig.getIndexFormat()), so
+ * searches and updates use the settings it was built with.
+ */
+public class IndexManifest {
+
+  static public final String sFileName = "manifest.txt";
+
+  static public class Entry {
+    public long fLastModified;
+    public long fLength;
+    public String fHash;
+  }
+
+  private HashMap<String, Entry> fEntries = new HashMap<String, Entry>();
+  private String fFormat = null;
+
+  static public String getKey(File file) {
+    return file.getParentFile().getName() + "/" + file.getName();
+  }
+
+  public synchronized Entry get(String key) {
+    return fEntries.get(key);
+  }
+
+  public synchronized void put(String key, File file, String hash) {
+    Entry e = new Entry();
+    e.fLastModified = file.lastModified();
+    e.fLength = file.length();
+    e.fHash = hash;
+    fEntries.put(key, e);
+  }
+
+  /** @return format of the index, or null for indexes built before it was recorded */
+  public synchronized String getFormat() {
+    return fFormat;
+  }
+
+  public synchronized void setFormat(String format) {
+    fFormat = format;
+  }
+
+  public synchronized void remove(String key) {
+    fEntries.remove(key);
+  }
+
+  public synchronized Set<String> keys() {
+    return new TreeSet<String>(fEntries.keySet());
+  }
+
+  /**
+   * @return true if file still has the time and length recorded for it
+   */
+  public boolean isUnchanged(String key, File file) {
+    Entry e = get(key);
+    return e != null && e.fLastModified == file.lastModified() && e.fLength == file.length();
+  }
+
+  /**
+   * @return the manifest stored in indexDir, or null if there is none
+   */
+  static public IndexManifest read(String indexDir) throws IOException {
+    File f = new File(indexDir, sFileName);
+    if (!f.exists())
+      return null;
+    IndexManifest m = new IndexManifest();
+    BufferedReader in = new BufferedReader(new FileReader(f));
+    try {
+      for (;;) {
+        String line = in.readLine();
+        if (line == null)
+          break;
+        String[] x = line.split("\t");
+        if (x.length == 2 && x[0].equals("format")) {
+          m.fFormat = x[1];
+          continue;
+        }
+        if (line.startsWith("#") || x.length != 4)
+          continue;
+        Entry e = new Entry();
+        e.fLastModified = Long.parseLong(x[1]);
+        e.fLength = Long.parseLong(x[2]);
+        e.fHash = x[3];
+        m.fEntries.put(x[0], e);
+      }
+    } finally {
+      in.close();
+    }
+    return m;
+  }
+
+  /** write to a temporary file first so a crash never leaves half a manifest */
+  public synchronized void write(String indexDir) throws IOException {
+    File f = new File(indexDir, sFileName);
+    File tmp = new File(indexDir, sFileName + ".tmp");
+    PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tmp)));
+    if (fFormat != null)
+      out.println("format\t" + fFormat);
+    out.println("# file\tmodified\tlength\tmd5");
+    for (Iterator<String> iter = keys().iterator(); iter.hasNext();) {
+      String key = iter.next();
+      Entry e = fEntries.get(key);
+      out.println(key + "\t" + e.fLastModified + "\t" + e.fLength + "\t" + e.fHash);
+    }
+    out.close();
+    if (out.checkError())
+      throw new IOException("Unable to write " + tmp);
+    f.delete();
+    if (!tmp.renameTo(f))
+      throw new IOException("Unable to rename " + tmp + " to " + f);
+  }
+
+  /**
+   * @return md5 of the file content as hex
+   */
+  static public String getHash(File file) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    FileInputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      for (;;) {
+        int i = in.read(buffer);
+        if (i < 0)
+          break;
+        md.update(buffer, 0, i);
+      }
+    } finally {
+      in.close();
+    }
+    StringBuffer sb = new StringBuffer();
+    byte[] digest = md.digest();
+    for (int i = 0; i < digest.length; i++) {
+      sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+      sb.append(Character.forDigit(digest[i] & 0xF, 16));
+    }
+    return sb.toString();
+  }
+}
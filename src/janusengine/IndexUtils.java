@@ -13,22 +13,55 @@ import java.io.FileReader;
 import java.io.StringReader;
 import java.io.IOException;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.LogMergePolicy;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 
 public class IndexUtils {
 
+  /**
+   * Number of threads analysing documents while indexing.  With more than one
+   * the documents are added in no particular order, so hits with equal scores
+   * may come back in a different order than from a single threaded build.
+   */
+  static public int sIndexThreads = 1;
+  static public double sRAMBufferSizeMB = IndexWriter.DEFAULT_RAM_BUFFER_SIZE_MB;
+  static public int sMergeFactor = LogMergePolicy.DEFAULT_MERGE_FACTOR;
+  static public double sMaxMergeMB = LogByteSizeMergePolicy.DEFAULT_MAX_MERGE_MB;
+
   /**
    * @return number of ngrams picked
    */
   static public int indexDocs(String docDir, String indexDir) {
+    return indexDocs(docDir, indexDir, EngineConfig.getDefault());
+  }
+
+  /**
+   * @param config winnowing and mapping settings of the index
+   * @return number of ngrams picked
+   */
+  static public int indexDocs(String docDir, String indexDir, EngineConfig config) {
     final File docDirFile = new File(docDir);
     if (!docDirFile.exists() || !docDirFile.canRead()) {
       System.err.println("Document directory '" + docDirFile.getAbsolutePath() + "' does not exist or is not readable, please check the path");
@@ -37,13 +70,15 @@ public class IndexUtils {
 
     Date start = new Date();
     try {
-      Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_CURRENT);
-      IndexWriter writer = new IndexWriter(FSDirectory.open(new File(indexDir)), analyzer, true, new IndexWriter.MaxFieldLength(25000)); // TODO: what max field length?
+      IndexWriter writer = openWriter(indexDir, true);
       System.out.println("Indexing to directory '" + indexDir + "'...");
-      int result = indexDocs(writer, docDirFile);
+      IndexManifest manifest = new IndexManifest();
+      manifest.setFormat(config.getIndexFormat());
+      int result = (sIndexThreads > 1 ? indexDocsParallel(writer, docDirFile, sIndexThreads, manifest, config) : indexDocs(writer, docDirFile, manifest, config));
       System.out.println("Optimizing...");
       writer.optimize();
       writer.close();
+      manifest.write(indexDir);
 
       Date end = new Date();
       System.out.println(end.getTime() - start.getTime() + " total milliseconds");
@@ -54,52 +89,279 @@ public class IndexUtils {
     }
   }
 
+  static IndexWriter openWriter(String indexDir, boolean create) throws IOException {
+    Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_CURRENT);
+    IndexWriter writer = new IndexWriter(FSDirectory.open(new File(indexDir)), analyzer, create, new IndexWriter.MaxFieldLength(25000)); // TODO: what max field length?
+    writer.setRAMBufferSizeMB(sRAMBufferSizeMB);
+    LogByteSizeMergePolicy mergePolicy = new LogByteSizeMergePolicy(writer);
+    mergePolicy.setMergeFactor(sMergeFactor);
+    mergePolicy.setMaxMergeMB(sMaxMergeMB);
+    writer.setMergePolicy(mergePolicy);
+    return writer;
+  }
+
+  /**
+   * Reindex only the quotations whose data files were added, changed or
+   * removed since the manifest was written.  Falls back to a full build when
+   * there is no index or manifest.
+   * @return number of quotations added, updated or deleted
+   */
+  static public int updateDocs(String docDir, String indexDir) throws IOException {
+    return updateDocs(docDir, indexDir, EngineConfig.getDefault());
+  }
+
+  /**
+   * @param config settings for a rebuild, an existing index is updated with
+   *          the format it was built with (see getIndexConfig)
+   */
+  static public int updateDocs(String docDir, String indexDir, EngineConfig config) throws IOException {
+    File docDirFile = new File(docDir);
+    IndexManifest manifest = (new File(indexDir).exists() ? IndexManifest.read(indexDir) : null);
+    if (manifest == null) {
+      System.out.println("No index manifest, rebuilding '" + indexDir + "'...");
+      SplitMF_XML.deleteRecursive(indexDir);
+      indexDocs(docDir, indexDir, config);
+      return -1;
+    }
+    config = getIndexConfig(indexDir, config);
+    manifest.setFormat(config.getIndexFormat());
+
+    Date start = new Date();
+    IndexWriter writer = openWriter(indexDir, false);
+    int changes = 0;
+    try {
+      // added or changed files
+      HashSet<String> seen = new HashSet<String>();
+      Vector<File> files = new Vector<File>();
+      listDocs(docDirFile, files);
+      for (Iterator<File> iter = files.iterator(); iter.hasNext();) {
+        File file = iter.next();
+        String key = IndexManifest.getKey(file);
+        seen.add(key);
+        if (manifest.isUnchanged(key, file))
+          continue;
+        IndexManifest.Entry e = manifest.get(key);
+        String hash = IndexManifest.getHash(file);
+        if (e != null && e.fHash.equals(hash)) {
+          manifest.put(key, file, hash); // only touched
+          continue;
+        }
+        writer.deleteDocuments(getKeyQuery(file));
+        indexDoc(writer, file, hash, manifest, config);
+        changes++;
+      }
+      // removed files
+      for (Iterator<String> iter = manifest.keys().iterator(); iter.hasNext();) {
+        String key = iter.next();
+        if (seen.contains(key))
+          continue;
+        writer.deleteDocuments(getKeyQuery(new File(docDirFile, key)));
+        manifest.remove(key);
+        changes++;
+      }
+    } finally {
+      writer.close();
+    }
+    manifest.write(indexDir);
+
+    Date end = new Date();
+    System.out.println("Updated " + changes + " quotations in " + (end.getTime() - start.getTime()) + " milliseconds");
+    return changes;
+  }
+
+  /**
+   * @param config settings besides the index format
+   * @return config with the format of the index in indexDir, or null if
+   *         there is no index yet
+   */
+  static public EngineConfig getIndexConfig(String indexDir, EngineConfig config) throws IOException {
+    if (!new File(indexDir).exists())
+      return null;
+    IndexManifest manifest = IndexManifest.read(indexDir);
+    if (manifest != null && manifest.getFormat() != null)
+      return config.withIndexFormat(manifest.getFormat());
+    // built before the format was recorded, only the hash terms can be told apart
+    return config.withIndexFormat("hashterms=" + hasHashTermField(indexDir));
+  }
+
+  /**
+   * @return true if any document of the index has NGram.sHashTermField
+   */
+  static boolean hasHashTermField(String indexDir) throws IOException {
+    IndexReader reader = IndexReader.open(FSDirectory.open(new File(indexDir)), true);
+    try {
+      return reader.getFieldNames(IndexReader.FieldOption.INDEXED).contains(NGram.sHashTermField);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * @return query matching the indexed document for file (name and path fields)
+   */
+  static Query getKeyQuery(File file) {
+    BooleanQuery q = new BooleanQuery();
+    q.add(new TermQuery(new Term("path", getPath(file).toLowerCase())), BooleanClause.Occur.MUST);
+    q.add(new TermQuery(new Term("name", getName(file))), BooleanClause.Occur.MUST);
+    return q;
+  }
+
+  /** dataset directory the file is in, e.g. mf */
+  static String getPath(File file) {
+    String path=file.getParent(); int k=Math.max(path.lastIndexOf("/"),path.lastIndexOf("\\")); if (k>=0) path=path.substring(k+1);
+    return path;
+  }
+
+  /** quotation name, the file name without extension */
+  static String getName(File file) {
+    String name=file.getName(); int t=name.lastIndexOf("."); if (t>=0) name=name.substring(0,t);
+    return name;
+  }
+
+  static void listDocs(File file, Vector<File> files) {
+    if (file.canRead()) {
+      if (file.isDirectory()) {
+        String[] list = file.list();
+        if (list != null) {
+          for (int i = 0; i < list.length; i++) {
+            listDocs(new File(file, list[i]), files);
+          }
+        }
+      } else {
+        files.add(file);
+      }
+    }
+  }
+
   static int pacify = 0;
   
   /**
    * @return number of ngrams picked
    */
-  static int indexDocs(IndexWriter writer, File file) throws IOException {
+  static int indexDocs(IndexWriter writer, File file, IndexManifest manifest, EngineConfig config) throws IOException {
     int result = 0;
     if (file.canRead()) {
       if (file.isDirectory()) {
         String[] files = file.list();
         if (files != null) {
           for (int i = 0; i < files.length; i++) {
-            result += indexDocs(writer, new File(file, files[i]));
+            result += indexDocs(writer, new File(file, files[i]), manifest, config);
           }
         }
       } else {
         // not needed for now.
         //if (pacify++ % 1000 == 0) System.out.println("adding " + pacify + " " + file);
-        try {
-          Document doc = new Document();
-          String path=file.getParent(); int k=Math.max(path.lastIndexOf("/"),path.lastIndexOf("\\")); if (k>=0) path=path.substring(k+1);
-          doc.add(new Field("path", path, Field.Store.YES, Field.Index.ANALYZED));
-          String name=file.getName(); int t=name.lastIndexOf("."); if (t>=0) name=name.substring(0,t);
-          doc.add(new Field("name", name, Field.Store.YES, Field.Index.NOT_ANALYZED));
-          //doc.add(new Field("modified", DateTools.timeToString(file.lastModified(), DateTools.Resolution.MINUTE), Field.Store.YES, Field.Index.NOT_ANALYZED));
-          //doc.add(new Field("name", NGram.convertToNormalized(file.getName()), Field.Store.NO, Field.Index.ANALYZED));
-          String original = NGramUtils.readInFile(file.getCanonicalPath());
-          // link
-          String l = NGramUtils.extractTag(original,"<L>","</L>");
-          if (l!=null) doc.add(new Field("L", l, Field.Store.YES, Field.Index.NOT_ANALYZED));
-          // original
-          doc.add(new Field("original", original, Field.Store.YES, Field.Index.NOT_ANALYZED)); // allow access to the origial form
-          // searchable data
-          String originalQ = NGramUtils.truncateAt(original, "<");
-          //String originalR = (original!=originalQ ? original.substring(originalQ.length()) : null);
-          String originalR = NGramUtils.extractTag(original,"<cite>","</cite>"); // TODO: query biblio+link, not just cite?
-          NGram.CombinedDocument cb = NGram.createDocumentReader(new StringReader(originalQ),originalR);
-          doc.add(new Field("contents", cb.r)); // original form and ngrams
-
-          writer.addDocument(doc);
-          result += cb.w.fOutputEntries.size();
-
-        } catch (FileNotFoundException fnfe) {
-        }
+        result += indexDoc(writer, file, null, manifest, config);
       }
     }
     return result;
   }
+
+  /**
+   * @param hash content hash of file for the manifest, or null to compute it
+   * @return number of ngrams picked
+   */
+  static int indexDoc(IndexWriter writer, File file, String hash, IndexManifest manifest, EngineConfig config) throws IOException {
+    try {
+      if (hash == null) hash = IndexManifest.getHash(file);
+      Document doc = new Document();
+      doc.add(new Field("path", getPath(file), Field.Store.YES, Field.Index.ANALYZED));
+      doc.add(new Field("name", getName(file), Field.Store.YES, Field.Index.NOT_ANALYZED));
+      //doc.add(new Field("modified", DateTools.timeToString(file.lastModified(), DateTools.Resolution.MINUTE), Field.Store.YES, Field.Index.NOT_ANALYZED));
+      //doc.add(new Field("name", NGram.convertToNormalized(file.getName()), Field.Store.NO, Field.Index.ANALYZED));
+      String original = NGramUtils.readInFile(file.getCanonicalPath());
+      // link
+      String l = NGramUtils.extractTag(original,"<L>","</L>");
+      if (l!=null) doc.add(new Field("L", l, Field.Store.YES, Field.Index.NOT_ANALYZED));
+      // original
+      doc.add(new Field("original", original, Field.Store.YES, Field.Index.NOT_ANALYZED)); // allow access to the origial form
+      // searchable data
+      String originalQ = NGramUtils.truncateAt(original, "<");
+      //String originalR = (original!=originalQ ? original.substring(originalQ.length()) : null);
+      String originalR = NGramUtils.extractTag(original,"<cite>","</cite>"); // TODO: query biblio+link, not just cite?
+      // stored split, so hits need not load and parse the full original
+      doc.add(new Field("originalQ", originalQ, Field.Store.YES, Field.Index.NO));
+      if (originalR!=null) doc.add(new Field("cite", originalR, Field.Store.YES, Field.Index.NO));
+      NGram.CombinedDocument cb = NGram.createDocumentReader(new StringReader(originalQ),originalR,config);
+      doc.add(new Field("contents", cb.r)); // original form and ngrams
+      if (config.fHashTerms) {
+        Field ngrams = new Field(NGram.sHashTermField, NGram.createHashTermStream(cb.w));
+        ngrams.setOmitTermFreqAndPositions(true);
+        doc.add(ngrams);
+      }
+      // winnowed entries of originalQ, so hits need not be winnowed again when highlighting
+      doc.add(new Field("fingerprints", NGram.Fingerprints.create(cb.w).encode(), Field.Store.YES));
+
+      writer.addDocument(doc);
+      manifest.put(IndexManifest.getKey(file), file, hash);
+      return cb.w.fOutputEntries.size();
+
+    } catch (FileNotFoundException fnfe) {
+      return 0;
+    }
+  }
+
+  static final File sEndOfFiles = new File("");
+
+  /**
+   * Walks file on this thread while a pool of workers winnows the documents
+   * and adds them to the (thread safe) writer.
+   * @return number of ngrams picked
+   */
+  static int indexDocsParallel(final IndexWriter writer, File file, int threads, final IndexManifest manifest, final EngineConfig config) throws IOException {
+    final BlockingQueue<File> queue = new ArrayBlockingQueue<File>(threads * 4);
+    final AtomicInteger result = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread("indexer-" + i) {
+        public void run() {
+          // keep taking files after a failure, so the producer never blocks on a full queue
+          for (;;) {
+            File f;
+            try {
+              f = queue.take();
+            } catch (InterruptedException e) {
+              failure.compareAndSet(null, e);
+              return;
+            }
+            if (f == sEndOfFiles) break;
+            if (failure.get() != null) continue; // drain
+            try {
+              result.addAndGet(indexDoc(writer, f, null, manifest, config));
+            } catch (Throwable e) {
+              failure.compareAndSet(null, e);
+            }
+          }
+        }
+      };
+      workers[i].start();
+    }
+    try {
+      queueDocs(queue, file, failure);
+      for (int i = 0; i < threads; i++) queue.put(sEndOfFiles);
+      for (int i = 0; i < threads; i++) workers[i].join();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while indexing " + file);
+    }
+    Throwable e = failure.get();
+    if (e instanceof IOException) throw (IOException) e;
+    if (e instanceof RuntimeException) throw (RuntimeException) e;
+    if (e != null) throw new RuntimeException(e);
+    return result.get();
+  }
+
+  static void queueDocs(BlockingQueue<File> queue, File file, AtomicReference<Throwable> failure) throws InterruptedException {
+    if (!file.canRead() || failure.get() != null) return;
+    if (file.isDirectory()) {
+      String[] files = file.list();
+      if (files != null) {
+        for (int i = 0; i < files.length; i++) {
+          queueDocs(queue, new File(file, files[i]), failure);
+        }
+      }
+    } else {
+      queue.put(file);
+    }
+  }
 }
@@ -13,13 +13,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringReader;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.Hashtable;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Vector;
 
 import org.apache.lucene.document.Document;
@@ -32,11 +27,13 @@ import org.apache.lucene.search.Searcher;
  */
 public class MFSearch {
 
+  /** default for EngineConfig.getDefault() */
   static public int sMaxSeparation = 100;
 
   String fBaseDir;
   int fNGramSize;
   int fWindowSize;
+  private volatile EngineConfig fConfig;
 
   public MFSearch() throws IOException {
     this(new File(".").getCanonicalPath() + "/");
@@ -51,101 +48,252 @@ public class MFSearch {
   public void reset() {
   }
 
+  /**
+   * @return settings of this engine, taking the index format from the index
+   *         once there is one (see IndexUtils.getIndexConfig), and otherwise
+   *         fNGramSize, fWindowSize and the static defaults to build it with
+   */
+  public EngineConfig getConfig() {
+    EngineConfig config = fConfig;
+    if (config != null)
+      return config;
+    config = EngineConfig.getDefault().with(fBaseDir, fNGramSize, fWindowSize);
+    try {
+      EngineConfig indexConfig = IndexUtils.getIndexConfig(fBaseDir + "index", config);
+      if (indexConfig == null)
+        return config; // not fixed until the index is built
+      fConfig = indexConfig;
+      return indexConfig;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   // ----------------------
   // static query methods
   // ----------------------
 
-  static class HitRangeComparator implements java.util.Comparator<HitRange> {
-    public int compare(HitRange o1, HitRange o2) {
-      return o1.start - o2.start;
+  /**
+   * Ranges of inclusive offsets packed as start,end pairs in one int array,
+   * so sorting, combining and merging the ranges of many hits does not
+   * create an object per range.
+   */
+  static class HitRanges {
+    int[] fRanges;
+    int fSize = 0;
+
+    HitRanges() {
+      this(8);
+    }
+
+    HitRanges(int capacity) {
+      fRanges = new int[Math.max(capacity, 1) * 2];
+    }
+
+    /** @param pairs start,end pairs, kept not copied */
+    static HitRanges fromPairs(int[] pairs) {
+      HitRanges r = new HitRanges(0);
+      r.fRanges = pairs;
+      r.fSize = pairs.length / 2;
+      return r;
+    }
+
+    /** @return start,end pairs */
+    int[] toPairs() {
+      return Arrays.copyOf(fRanges, fSize * 2);
+    }
+
+    void add(int start, int end) {
+      if (fSize * 2 == fRanges.length) fRanges = Arrays.copyOf(fRanges, Math.max(fSize * 4, 2));
+      fRanges[fSize * 2] = start;
+      fRanges[fSize * 2 + 1] = end;
+      fSize++;
+    }
+
+    int getStart(int i) {
+      return fRanges[i * 2];
+    }
+
+    int getEnd(int i) {
+      return fRanges[i * 2 + 1];
+    }
+
+    /** stable sort by start */
+    void sort() {
+      int i = 1;
+      for (; i < fSize && fRanges[i * 2 - 2] <= fRanges[i * 2]; i++)
+        ;
+      if (i >= fSize)
+        return;
+      long[] keys = new long[fSize];
+      for (i = 0; i < fSize; i++) keys[i] = ((long) fRanges[i * 2] << 32) | i;
+      Arrays.sort(keys);
+      int[] sorted = new int[fRanges.length];
+      for (i = 0; i < fSize; i++) {
+        int from = (int) keys[i];
+        sorted[i * 2] = fRanges[from * 2];
+        sorted[i * 2 + 1] = fRanges[from * 2 + 1];
+      }
+      fRanges = sorted;
     }
-  }
 
-  static class HitRange {
-    /* inclusive */
-    int start;
-    /* inclusive */
-    int end;
+    /** collapse overlapping ranges in place, must be sorted */
+    void combineOverlapping() {
+      int size = 0;
+      for (int i = 0; i < fSize; i++) {
+        int start = fRanges[i * 2], end = fRanges[i * 2 + 1];
+        if (size > 0) {
+          if (fRanges[size * 2 - 2] > start)
+            throw new RuntimeException("Not sorted.");
+          if (fRanges[size * 2 - 1] >= start) {
+            fRanges[size * 2 - 1] = Math.max(fRanges[size * 2 - 1], end);
+            continue;
+          }
+        }
+        fRanges[size * 2] = start;
+        fRanges[size * 2 + 1] = end;
+        size++;
+      }
+      fSize = size;
+    }
+
+    /**
+     * Merge sorted ranges of many hits, the same as sorting them all together
+     * (stable) but in one pass over a heap of the hits.
+     */
+    static HitRanges union(Vector<HitRanges> all) {
+      int total = 0;
+      for (int i = 0; i < all.size(); i++) total += all.get(i).fSize;
+      HitRanges r = new HitRanges(total);
+      // (start of next range << 32 | hit) of each hit with ranges left
+      long[] heap = new long[all.size()];
+      int[] next = new int[all.size()];
+      int heapSize = 0;
+      for (int i = 0; i < all.size(); i++) {
+        if (all.get(i).fSize > 0) heapSize = pushHeap(heap, heapSize, ((long) all.get(i).getStart(0) << 32) | i);
+      }
+      while (heapSize > 0) {
+        int hit = (int) heap[0];
+        HitRanges ranges = all.get(hit);
+        int i = next[hit]++;
+        r.add(ranges.getStart(i), ranges.getEnd(i));
+        if (i + 1 < ranges.fSize) {
+          heap[0] = ((long) ranges.getStart(i + 1) << 32) | hit;
+        } else {
+          heap[0] = heap[--heapSize];
+        }
+        siftDown(heap, heapSize, 0);
+      }
+      return r;
+    }
 
-    public HitRange(int start, int end) {
-      this.start = start;
-      this.end = end;
+    static private int pushHeap(long[] heap, int size, long key) {
+      int i = size++;
+      for (; i > 0 && heap[(i - 1) / 2] > key; i = (i - 1) / 2) heap[i] = heap[(i - 1) / 2];
+      heap[i] = key;
+      return size;
     }
 
-    static HitRangeComparator sComparator = new HitRangeComparator();
+    static private void siftDown(long[] heap, int size, int i) {
+      long key = heap[i];
+      for (int child; (child = i * 2 + 1) < size; i = child) {
+        if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+        if (heap[child] >= key) break;
+        heap[i] = heap[child];
+      }
+      heap[i] = key;
+    }
   }
 
-  static class NGramHitMatch {
-    /* inclusive */
-    int startInQuery = -1;
-    /* inclusive */
-    int endInQuery = -1;
-    /* inclusive */
-    protected int startInHit = -1;
-    /* inclusive */
-    protected int endInHit = -1;
-
-    public NGramHitMatch() {
+  /**
+   * Matches between query and hit as parallel arrays of inclusive offsets,
+   * so highlighting a hit does not create an object per match.
+   */
+  static class NGramHitMatches {
+    int[] fStartInQuery;
+    int[] fEndInQuery;
+    int[] fStartInHit;
+    int[] fEndInHit;
+    int fSize = 0;
+
+    NGramHitMatches(int capacity) {
+      capacity = Math.max(capacity, 4);
+      fStartInQuery = new int[capacity];
+      fEndInQuery = new int[capacity];
+      fStartInHit = new int[capacity];
+      fEndInHit = new int[capacity];
     }
 
-    public NGramHitMatch(int startInQuery, int endInQuery, int startInHit, int endInHit) {
-      this.startInQuery = startInQuery;
-      this.endInQuery = endInQuery;
-      this.startInHit = startInHit;
-      this.endInHit = endInHit;
+    void add(int startInQuery, int endInQuery, int startInHit, int endInHit) {
+      if (fSize == fStartInQuery.length) {
+        int capacity = fSize * 2;
+        fStartInQuery = Arrays.copyOf(fStartInQuery, capacity);
+        fEndInQuery = Arrays.copyOf(fEndInQuery, capacity);
+        fStartInHit = Arrays.copyOf(fStartInHit, capacity);
+        fEndInHit = Arrays.copyOf(fEndInHit, capacity);
+      }
+      fStartInQuery[fSize] = startInQuery;
+      fEndInQuery[fSize] = endInQuery;
+      fStartInHit[fSize] = startInHit;
+      fEndInHit[fSize] = endInHit;
+      fSize++;
     }
 
-    public NGramHitMatch copy() {
-      return new NGramHitMatch(startInQuery, endInQuery, startInHit, endInHit);
+    void addAll(NGramHitMatches m) {
+      for (int i = 0; i < m.fSize; i++) add(m.fStartInQuery[i], m.fEndInQuery[i], m.fStartInHit[i], m.fEndInHit[i]);
     }
 
-    private void setStart(int inQuery, int inHit) {
-      startInQuery = inQuery;
-      startInHit = inHit;
+    void moveStart(int i, int amount) {
+      fStartInQuery[i] += amount;
+      fStartInHit[i] += amount;
     }
 
-    private void setEnd(int inQuery, int inHit) {
-      endInQuery = inQuery;
-      endInHit = inHit;
+    void moveEnd(int i, int amount) {
+      fEndInQuery[i] += amount;
+      fEndInHit[i] += amount;
     }
 
-    private void moveStart(int amount) {
-      startInQuery += amount;
-      startInHit += amount;
+    /** stable sort on start in query */
+    void sort() {
+      long[] keys = new long[fSize];
+      for (int i = 0; i < fSize; i++) keys[i] = ((long) fStartInQuery[i] << 32) | i;
+      Arrays.sort(keys);
+      int[] tmp = new int[fSize];
+      permute(fStartInQuery, keys, tmp);
+      permute(fEndInQuery, keys, tmp);
+      permute(fStartInHit, keys, tmp);
+      permute(fEndInHit, keys, tmp);
     }
 
-    private void moveEnd(int amount) {
-      endInQuery += amount;
-      endInHit += amount;
+    private void permute(int[] a, long[] keys, int[] tmp) {
+      for (int i = 0; i < fSize; i++) tmp[i] = a[(int) keys[i]];
+      System.arraycopy(tmp, 0, a, 0, fSize);
     }
   }
 
-  static private void addWords(String queryData, String hitData, NGramHitMatch curr, NGramHitMatch next, Vector<NGramHitMatch> extraMatches) {
+  /**
+   * Add words found in both query and hit between the end of one match and
+   * the start of the next.
+   */
+  static private void addWords(TokenizedText queryText, TokenizedText hitText, int currEndInQuery, int currEndInHit, int nextStartInQuery, int nextStartInHit, int[] range, NGramHitMatches extraMatches) {
     // get words in query
-    String[] wordsInQueryData = getWordsBetween(queryData, curr.endInQuery, next.startInQuery);
-    if (wordsInQueryData.length <= 0)
-      return;
-    HashSet<String> wordsInQueryDataSet = new HashSet<String>();
-    for (int i = 0; i < wordsInQueryData.length; i++)
-      wordsInQueryDataSet.add(wordsInQueryData[i].trim().toLowerCase());
-    wordsInQueryDataSet.remove("");
-    if (wordsInQueryDataSet.size() <= 0)
+    queryText.getWordsBetween(currEndInQuery, nextStartInQuery, range);
+    int queryFirst = range[0], queryEnd = range[1];
+    if (queryFirst >= queryEnd)
       return;
     // find overlapping words in hit
-    String[] wordsInHitData = getWordsBetween(hitData, curr.endInHit, next.startInHit);
-    if (wordsInHitData.length > 0) {
-      for (int i = 0; i < wordsInHitData.length; i++) {
-        String word = wordsInHitData[i].trim().toLowerCase();
-        if (word.length() <= 0)
-          continue;
-        if (wordsInQueryDataSet.contains(word)) {
+    hitText.getWordsBetween(currEndInHit, nextStartInHit, range);
+    for (int hitWord = range[0]; hitWord < range[1]; hitWord++) {
+      for (int queryWord = queryFirst; queryWord < queryEnd; queryWord++) {
+        if (hitText.isSameWord(hitWord, queryText, queryWord)) {
           // add word to extra matches
-          int wordLength = word.length();
-          int wordStartInHit = indexOfWordIgnoreCase(hitData, word, curr.endInHit);
+          int wordLength = hitText.fEnds[hitWord] - hitText.fStarts[hitWord];
+          int wordStartInHit = hitText.indexOfWord(hitWord, currEndInHit);
           assert (wordStartInHit >= 0);
-          int wordStartInQuery = indexOfWordIgnoreCase(queryData, word, curr.endInQuery);
+          int wordStartInQuery = queryText.indexOfWord(queryWord, currEndInQuery);
           assert (wordStartInQuery >= 0);
-          extraMatches.add(new NGramHitMatch(wordStartInQuery, wordStartInQuery + wordLength - 1, wordStartInHit, wordStartInHit + wordLength - 1));
+          extraMatches.add(wordStartInQuery, wordStartInQuery + wordLength - 1, wordStartInHit, wordStartInHit + wordLength - 1);
+          break;
         }
       }
     }
@@ -155,193 +303,112 @@ public class MFSearch {
    * @return vector of match locations within original text for the specified
    *         hit data.
    */
-  static public void getMatchLocations(String queryData, NGram.Winnowing queryWinnow, String hitData, Vector<HitRange> queryOverlaps, Vector<HitRange> hitOverlaps) {
-    // make hashmap of hitNGrams
-    HashMap<String, NGram.Entry> hitNGrams = new HashMap<String, NGram.Entry>();
-    NGram.Winnowing hitWinnow = new NGram.Winnowing();
-    hitWinnow.winnow(hitData);
-    for (Iterator<NGram.Entry> iter = hitWinnow.fOutputEntries.iterator(); iter.hasNext();) {
-      NGram.Entry e2 = iter.next();
-      // TODO: How do we handle when already exists?
-      if (hitNGrams.get(e2.fToken) != null)
-        continue; // throw new
-                  // RuntimeException("Internal Error: Token value already found in map '"
-                  // + e2.fChars + "'");
-      hitNGrams.put(e2.fToken, e2);
+  static public void getMatchLocations(String queryData, NGram.Winnowing queryWinnow, String hitData, HitRanges queryOverlaps, HitRanges hitOverlaps) {
+    getMatchLocations(queryData, queryWinnow, hitData, null, queryOverlaps, hitOverlaps);
+  }
+
+  static public void getMatchLocations(String queryData, NGram.Winnowing queryWinnow, String hitData, NGram.Fingerprints hitFingerprints, HitRanges queryOverlaps, HitRanges hitOverlaps) {
+    getMatchLocations(queryWinnow.fConfig, queryData, queryWinnow, hitData, hitFingerprints, queryOverlaps, hitOverlaps);
+  }
+
+  /**
+   * @param hitFingerprints winnowed entries of hitData stored at index time,
+   *          or null to winnow hitData here
+   */
+  static public void getMatchLocations(EngineConfig config, String queryData, NGram.Winnowing queryWinnow, String hitData, NGram.Fingerprints hitFingerprints, HitRanges queryOverlaps, HitRanges hitOverlaps) {
+    int maxSeparation = config.fMaxSeparation;
+    // sorted hitNGrams (first entry for each token)
+    if (hitFingerprints == null) {
+      NGram.Winnowing hitWinnow = new NGram.Winnowing(config);
+      hitWinnow.winnow(hitData);
+      hitFingerprints = NGram.Fingerprints.create(hitWinnow);
     }
 
-    // find NGram match locations
-    Vector<NGramHitMatch> overlappingHitMatches = new Vector<NGramHitMatch>();
-    // loop over query NGrams
-    for (Iterator<NGram.Entry> iter = queryWinnow.fOutputEntries.iterator(); iter.hasNext();) {
-      NGram.Entry queryEntry = iter.next();
-      NGram.Entry hitEntry;
-      if ((hitEntry = hitNGrams.get(queryEntry.fToken)) != null) {
-        if (!queryEntry.fChars.equals(hitEntry.fChars))
-          throw new RuntimeException("Internal error: tokens do not overlap for '" + queryEntry.fChars + "':'" + hitEntry.fChars + "'");
-        NGramHitMatch match = new NGramHitMatch();
-        match.setStart(queryEntry.fLocationStartInOriginal, hitEntry.fLocationStartInOriginal);
-        match.setEnd(queryEntry.fLocationEndInOriginal, hitEntry.fLocationEndInOriginal);
-        // add to vector
-        overlappingHitMatches.add(match);
+    // find NGram match locations, probing the query's token table with each
+    // (distinct) hit token, then back in query order
+    NGram.TokenTable queryTokens = queryWinnow.getTokenTable();
+    long[] found = new long[16];
+    int foundSize = 0;
+    for (int hitEntry = 0; hitEntry < hitFingerprints.fHashes.length; hitEntry++) {
+      for (int queryEntry = queryTokens.first(hitFingerprints.fHashes[hitEntry]); queryEntry >= 0; queryEntry = queryTokens.next(queryEntry)) {
+        if (foundSize == found.length) found = Arrays.copyOf(found, foundSize * 2);
+        found[foundSize++] = ((long) queryEntry << 32) | hitEntry;
       }
     }
+    Arrays.sort(found, 0, foundSize);
+    NGramHitMatches matches = new NGramHitMatches(foundSize + 4);
+    for (int i = 0; i < foundSize; i++) {
+      NGram.Entry queryEntry = queryWinnow.fOutputEntries.get((int) (found[i] >>> 32));
+      int hitEntry = (int) found[i];
+      matches.add(queryEntry.fLocationStartInOriginal, queryEntry.fLocationEndInOriginal, hitFingerprints.fStarts[hitEntry], hitFingerprints.fEnds[hitEntry]);
+    }
 
-    Iterator<NGramHitMatch> iter;
-    NGramHitMatch curr;
-    NGramHitMatch next;
-
-    // find words around hits up to sMaxSeparation away
-    Vector<NGramHitMatch> extraMatches = new Vector<NGramHitMatch>();
-    iter = overlappingHitMatches.iterator();
-    curr = null;
-    next = null;
-    for (boolean doneMatches = false; !doneMatches;) {
-      curr = next;
-      next = null;
-      if (iter.hasNext()) {
-        next = iter.next();
-        // debugging
-        // System.out.println("start=" + next.startInHit);
-      }
-      // two hits
-      if (curr != null && next != null) {
+    // find words around hits up to maxSeparation away, between each pair of
+    // matches and before the first and after the last
+    TokenizedText queryText = queryWinnow.getTokenizedText(queryData);
+    TokenizedText hitText = new TokenizedText(hitData);
+    int[] range = new int[2];
+    NGramHitMatches extraMatches = new NGramHitMatches(4);
+    int size = matches.fSize;
+    int[] sq = matches.fStartInQuery, eq = matches.fEndInQuery, sh = matches.fStartInHit, eh = matches.fEndInHit;
+    for (int next = 0; next <= size && size > 0; next++) {
+      int curr = next - 1;
+      if (curr >= 0 && next < size) {
+        // two hits
         // not lined up
-        if (curr.endInHit >= next.startInHit || curr.endInQuery >= next.startInQuery)
+        if (eh[curr] >= sh[next] || eq[curr] >= sq[next])
           continue;
         // close together = check between
-        if (curr.endInHit + sMaxSeparation >= next.startInHit && curr.endInQuery + sMaxSeparation >= next.startInQuery) {
-          // debugging
-          // System.out.println("addWords " + curr.startInHit + " " +
-          // curr.endInHit + " " + next.startInHit + " " + next.endInHit);
-          addWords(queryData, hitData, curr, next, extraMatches);
+        if (eh[curr] + maxSeparation >= sh[next] && eq[curr] + maxSeparation >= sq[next]) {
+          addWords(queryText, hitText, eq[curr], eh[curr], sq[next], sh[next], range, extraMatches);
         } else {
           // not close together = check close to each end
           int query, hit;
-          NGramHitMatch middle;
           // close to beginning (curr)
-          query = Math.min(curr.endInQuery + sMaxSeparation / 2, findEndOfSentence(queryData, curr.endInQuery, 1));
-          hit = Math.min(curr.endInHit + sMaxSeparation / 2, findEndOfSentence(hitData, curr.endInHit, 1));
-          middle = new NGramHitMatch(query, query, hit, hit);
-          addWords(queryData, hitData, curr, middle, extraMatches);
+          query = Math.min(eq[curr] + maxSeparation / 2, queryText.findEndOfSentence(eq[curr], 1));
+          hit = Math.min(eh[curr] + maxSeparation / 2, hitText.findEndOfSentence(eh[curr], 1));
+          addWords(queryText, hitText, eq[curr], eh[curr], query, hit, range, extraMatches);
           // close to end (next)
-          query = Math.max(next.startInQuery - sMaxSeparation / 2, findEndOfSentence(queryData, next.startInQuery, -1));
-          hit = Math.max(next.startInHit - sMaxSeparation / 2, findEndOfSentence(hitData, next.startInHit, -1));
-          middle = new NGramHitMatch(query, query, hit, hit);
-          addWords(queryData, hitData, middle, next, extraMatches);
+          query = Math.max(sq[next] - maxSeparation / 2, queryText.findEndOfSentence(sq[next], -1));
+          hit = Math.max(sh[next] - maxSeparation / 2, hitText.findEndOfSentence(sh[next], -1));
+          addWords(queryText, hitText, query, hit, sq[next], sh[next], range, extraMatches);
         }
+      } else if (curr >= 0) {
+        // find at end of hits
+        int query = Math.min(sq[curr] + maxSeparation, queryText.findEndOfSentence(eq[curr], 1));
+        int hit = Math.min(sh[curr] + maxSeparation, hitText.findEndOfSentence(eh[curr], 1));
+        addWords(queryText, hitText, eq[curr], eh[curr], query, hit, range, extraMatches);
       } else {
-        if (next == null) {
-          if (curr == null)
-            break;
-          // find at end of hits
-          int query = Math.min(curr.startInQuery + sMaxSeparation, findEndOfSentence(queryData, curr.endInQuery, 1));
-          int hit = Math.min(curr.startInHit + sMaxSeparation, findEndOfSentence(hitData, curr.endInHit, 1));
-          next = new NGramHitMatch(query, query, hit, hit);
-          doneMatches = true;
-        }
-        if (curr == null) {
-          // find at beginning of hits
-          int query = Math.max(next.startInQuery - sMaxSeparation, findEndOfSentence(queryData, next.startInQuery, -1));
-          int hit = Math.max(next.startInHit - sMaxSeparation, findEndOfSentence(hitData, next.startInHit, -1));
-          curr = new NGramHitMatch(query, query, hit, hit);
-        }
-        addWords(queryData, hitData, curr, next, extraMatches);
+        // find at beginning of hits
+        int query = Math.max(sq[next] - maxSeparation, queryText.findEndOfSentence(sq[next], -1));
+        int hit = Math.max(sh[next] - maxSeparation, hitText.findEndOfSentence(sh[next], -1));
+        addWords(queryText, hitText, query, hit, sq[next], sh[next], range, extraMatches);
       }
     }
-    if (extraMatches.size() >= 0) {
-      overlappingHitMatches.addAll(extraMatches);
-      sortMatches(overlappingHitMatches);
-    }
-    growMatches(overlappingHitMatches, queryData, hitData);
-
-    // add to output vectors
-    for (iter = overlappingHitMatches.iterator(); iter.hasNext();) {
-      NGramHitMatch match = iter.next();
-      if (match.startInQuery <= match.endInQuery)
-        queryOverlaps.add(new HitRange(match.startInQuery, match.endInQuery));
+    matches.addAll(extraMatches);
+    matches.sort();
+    growMatches(matches, queryData, hitData, config.fGrow);
+
+    // add to output ranges
+    for (int i = 0; i < matches.fSize; i++) {
+      if (matches.fStartInQuery[i] <= matches.fEndInQuery[i])
+        queryOverlaps.add(matches.fStartInQuery[i], matches.fEndInQuery[i]);
       // TODO: this was from a bug, the start was after then end, not sure why
-      // it came up, probably because of match.move()
-      if (match.startInHit <= match.endInHit)
-        hitOverlaps.add(new HitRange(match.startInHit, match.endInHit));
+      // it came up, probably because of moveStart/moveEnd
+      if (matches.fStartInHit[i] <= matches.fEndInHit[i])
+        hitOverlaps.add(matches.fStartInHit[i], matches.fEndInHit[i]);
     }
-    Collections.sort(queryOverlaps, HitRange.sComparator);
-    Collections.sort(hitOverlaps, HitRange.sComparator);
+    queryOverlaps.sort();
+    hitOverlaps.sort();
 
     // collapse overlapping ranges
-    combineOverlapping(queryOverlaps);
-    combineOverlapping(hitOverlaps);
+    queryOverlaps.combineOverlapping();
+    hitOverlaps.combineOverlapping();
 
     // TODO: grow match locations if they match original form to the left or
     // right
   }
 
-  static void sortMatches(List<NGramHitMatch> list) {
-    Collections.sort(list, new Comparator<NGramHitMatch>() {
-      public int compare(NGramHitMatch a, NGramHitMatch b) {
-        if (a.startInQuery < b.startInQuery)
-          return -1;
-        else if (a.startInQuery > b.startInQuery)
-          return 1;
-        else
-          return 0;
-      }
-    });
-  }
-
-  static void combineOverlapping(Vector<HitRange> overlaps) {
-    HitRange prev = null;
-    for (Iterator<HitRange> iter = overlaps.iterator(); iter.hasNext();) {
-      HitRange curr = iter.next();
-      // debugging
-      // System.out.println("overlap " + curr.start + " " + curr.end);
-      if (prev != null) {
-        if (prev.start > curr.start)
-          throw new RuntimeException("Not sorted.");
-        if (prev.end >= curr.start) {
-          prev.end = Math.max(prev.end, curr.end);
-          iter.remove();
-          curr = prev;
-        }
-      }
-      prev = curr;
-    }
-  }
-
-  static int indexOfIgnoreCase(String data, String value, int offset) {
-    char[] v = value.toLowerCase().toCharArray();
-    int length = data.length();
-    if (offset < 0)
-      offset = 0;
-    for (int match = 0; offset < length; offset++) {
-      char c = data.charAt(offset);
-      if (c >= 'A' && c <= 'Z')
-        c = (char) (c - 'A' + 'a');
-      if (c == v[match])
-        match++;
-      else if (match > 0) {
-        offset -= match;
-        match = 0;
-      }
-      if (match >= v.length)
-        return offset - v.length + 1;
-    }
-    return -1;
-  }
-
-  static int indexOfWordIgnoreCase(String data, String word, int offset) {
-    int wordLength = word.length();
-    // make sure starts and ends with whitespace or end of data
-    for (;; offset++) {
-      offset = indexOfIgnoreCase(data, word, offset);
-      if (offset < 0)
-        return offset;
-      if ((offset <= 0 || isWhitespace(data.charAt(offset - 1))) && (offset + wordLength >= data.length() || isWhitespace(data.charAt(offset + wordLength))))
-        break;
-    }
-    return offset;
-  }
-
   /**
    * Whitespace for highlighting does not include '<br>
    * '.
@@ -356,92 +423,57 @@ public class MFSearch {
     return true;
   }
 
-  static int findEndOfSentence(String data, int offset, int step) {
-    if (step > 0) {
-      int length = data.length();
-      for (; offset < length; offset += step)
-        if ("<>.!?\n\r".indexOf(data.charAt(offset)) >= 0)
-          return offset;
-      return length;
-    } else {
-      for (; offset >= 0; offset += step)
-        if ("<>.!?\n\r".indexOf(data.charAt(offset)) >= 0)
-          return offset;
-      return -1;
-    }
-  }
-
-  static String[] getWordsBetween(String data, int start, int end) {
-    // first word
-    if (start < 0)
-      start = 0;
-    else
-      for (; start < end; start++) {
-        if (isWhitespace(data.charAt(start)))
-          break;
-      }
-    // last word
-    if (end >= data.length())
-      end = data.length();
-    else
-      for (; start < end; end--) {
-        if (isWhitespace(data.charAt(end)))
-          break;
-      }
-    if (start >= end)
-      return new String[] {};
-    return data.substring(start, end).split("[^A-Za-z]+");
-  }
-
+  /** default for EngineConfig.getDefault() */
   static boolean sGrow = true;
 
-  static void growMatches(List<NGramHitMatch> list, String queryData, String hitData) {
+  static void growMatches(NGramHitMatches matches, String queryData, String hitData, boolean grow) {
     // TODO: handle translations, whitespace collapse, etc.
-    NGramHitMatch prev = null, match = null;
+    int[] sq = matches.fStartInQuery, eq = matches.fEndInQuery, sh = matches.fStartInHit, eh = matches.fEndInHit;
+    int prev = -1, match = -1;
     int maxHitIndex = hitData.length();
     int maxQueryIndex = queryData.length();
-    for (Iterator<NGramHitMatch> iter = list.iterator(); iter.hasNext();) {
+    for (int m = 0; m < matches.fSize; m++) {
       prev = match;
-      match = iter.next();
+      match = m;
       // TODO: find out why match.startInQuery is sometimes -1 (causing exception without this warning)
-      if (match.startInHit<0 || match.endInHit<match.startInHit || match.startInQuery<0 || match.endInQuery<match.startInQuery) { System.err.println("WARNING: invalid match "+match.startInHit+".."+match.endInHit+", "+match.startInQuery+".."+match.endInQuery); continue; } // validate
+      if (sh[match]<0 || eh[match]<sh[match] || sq[match]<0 || eq[match]<sq[match]) { System.err.println("WARNING: invalid match "+sh[match]+".."+eh[match]+", "+sq[match]+".."+eq[match]); continue; } // validate
       // overlap adjustment if query overlaps and hit doesn't
-      if (prev != null && prev.endInQuery >= match.startInQuery && !(prev.endInHit > match.startInHit && prev.startInHit < match.endInHit)) {
-        prev.moveEnd(match.startInQuery - prev.endInQuery - 2);
+      if (prev >= 0 && eq[prev] >= sq[match] && !(eh[prev] > sh[match] && sh[prev] < eh[match])) {
+        matches.moveEnd(prev, sq[match] - eq[prev] - 2);
       }
       // grow match before start
-      if (sGrow)
-        for (int i = match.startInHit - 1; i >= 0; i--, match.moveStart(-1)) {
-          if (match.startInQuery <= 0)
+      if (grow)
+        for (int i = sh[match] - 1; i >= 0; i--, matches.moveStart(match, -1)) {
+          if (sq[match] <= 0)
             break;
           char h = hitData.charAt(i);
-          char q = queryData.charAt(match.startInQuery - 1);
+          char q = queryData.charAt(sq[match] - 1);
           if (isWhitespace(h) && isWhitespace(q))
             continue;
           if (Character.toLowerCase(h) != Character.toLowerCase(q))
             break;
         }
       // remove whitespace at start
-      for (; match.startInQuery >= 0 && isWhitespace(queryData.charAt(match.startInQuery)); match.moveStart(1))
+      for (; sq[match] >= 0 && isWhitespace(queryData.charAt(sq[match])); matches.moveStart(match, 1))
         ;
       // grow match after end
-      if (sGrow)
-        for (int i = match.endInHit + 1; i < maxHitIndex; i++, match.moveEnd(1)) {
-          if (match.endInQuery + 1 >= maxQueryIndex)
+      if (grow)
+        for (int i = eh[match] + 1; i < maxHitIndex; i++, matches.moveEnd(match, 1)) {
+          if (eq[match] + 1 >= maxQueryIndex)
             break;
           char h = hitData.charAt(i);
-          char q = queryData.charAt(match.endInQuery + 1);
+          char q = queryData.charAt(eq[match] + 1);
           if (isWhitespace(h) && isWhitespace(q))
             continue;
           if (Character.toLowerCase(h) != Character.toLowerCase(q))
             break;
         }
       // remove whitespace at end
-      for (; match.endInQuery < maxQueryIndex && isWhitespace(queryData.charAt(match.endInQuery)); match.moveEnd(-1))
+      for (; eq[match] < maxQueryIndex && isWhitespace(queryData.charAt(eq[match])); matches.moveEnd(match, -1))
         ;
       // overlap adjustment if query overlaps and hit doesn't
-      if (prev != null && prev.endInQuery >= match.startInQuery && !(prev.endInHit > match.startInHit && prev.startInHit < match.endInHit)) {
-        match.moveStart(prev.endInQuery - match.startInQuery + 2);
+      if (prev >= 0 && eq[prev] >= sq[match] && !(eh[prev] > sh[match] && sh[prev] < eh[match])) {
+        matches.moveStart(match, eq[prev] - sq[match] + 2);
       }
     }
   }
@@ -458,6 +490,14 @@ public class MFSearch {
   }
 
   static public void mainFromServlet(String dir, PrintWriter out, Hashtable<String,String> formData) throws IOException {
+    mainFromServlet(dir, new MFSearchServlet(dir), out, formData);
+  }
+
+  /**
+   * Same as above, but reuses an existing engine so long running servers do
+   * not pay the setup cost on every request.
+   */
+  static public void mainFromServlet(String dir, MFSearchServlet mfsearch, PrintWriter out, Hashtable<String,String> formData) throws IOException {
     String header = dir + "/page-header.txt";
     if (new File(header).exists())
       out.println(NGramUtils.readInFile(header));
@@ -469,7 +509,6 @@ public class MFSearch {
       out.println("<body>");
     }
 
-    MFSearchServlet mfsearch = new MFSearchServlet(dir);
     int matches = mfsearch.runServletSearch(out, formData);
 
     String footer = dir + "/page-footer.txt";
@@ -509,6 +548,32 @@ public class MFSearch {
             gui.fNGramSize = Integer.parseInt(y);
           } else if (x.equalsIgnoreCase("w")) {
             gui.fWindowSize = Integer.parseInt(y);
+          } else if (x.equalsIgnoreCase("indexthreads")) {
+            IndexUtils.sIndexThreads = Integer.parseInt(y);
+          } else if (x.equalsIgnoreCase("rambuffermb")) {
+            IndexUtils.sRAMBufferSizeMB = Double.parseDouble(y);
+          } else if (x.equalsIgnoreCase("mergefactor")) {
+            IndexUtils.sMergeFactor = Integer.parseInt(y);
+          } else if (x.equalsIgnoreCase("maxmergemb")) {
+            IndexUtils.sMaxMergeMB = Double.parseDouble(y);
+          } else if (x.equalsIgnoreCase("hashterms")) {
+            NGram.sHashTerms = y.equalsIgnoreCase("true");
+          } else if (x.equalsIgnoreCase("rollinghash")) {
+            NGram.sRollingHash = y.equalsIgnoreCase("true");
+          } else if (x.equalsIgnoreCase("minsharedngrams")) {
+            MFSearchServlet.sMinSharedNGrams = Integer.parseInt(y);
+          } else if (x.equalsIgnoreCase("maxhits")) {
+            MFSearchServlet.sMaxHits = Integer.parseInt(y);
+          } else if (x.equalsIgnoreCase("rankbyoverlap")) {
+            MFSearchServlet.sRankByOverlap = y.equalsIgnoreCase("true");
+          } else if (x.equalsIgnoreCase("crossdatasetthreads")) {
+            MFSearchServlet.sCrossDatasetThreads = Integer.parseInt(y);
+          } else if (x.equalsIgnoreCase("resultcachechars")) {
+            MFSearchServlet.sResultCacheChars = Integer.parseInt(y);
+          } else if (x.equalsIgnoreCase("memorycorpus")) {
+            MFSearchServlet.sMemoryCorpus = y.equalsIgnoreCase("true");
+          } else if (x.equalsIgnoreCase("streamresults")) {
+            MFSearchServlet.sStreamResults = y.equalsIgnoreCase("true");
           } else if (x.equalsIgnoreCase("mappings")) {
             NGram.sSubwordMappingsFile = y;
           } else if (x.equalsIgnoreCase("queryFileRelative")) {
@@ -13,23 +13,35 @@ import java.io.StringWriter;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileLock;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Vector;
 import java.util.Hashtable;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopScoreDocCollector;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 
 /**
@@ -39,16 +51,60 @@ public class MFSearchServlet extends MFSearch {
 
   static public String sStartMarking = "<font style='BACKGROUND-COLOR: #ff6'>";
   static public String sEndMarking = "</font>";
+  /** least number of query ngrams a hit must share, fewer are dropped before loading them */
+  static public int sMinSharedNGrams = 1;
+  /** most hits returned for a query */
+  static public int sMaxHits = 100000;
+  /** rank hits by the number of query ngrams they share instead of by score (always done for large queries) */
+  static public boolean sRankByOverlap = false;
+  /**
+   * Answer ngram queries (without keywords) from all quotations held in memory
+   * rather than searching the index.  Hits are ranked by shared ngram count,
+   * so only used with sRankByOverlap or for large queries.
+   */
+  static public boolean sMemoryCorpus = false;
+  /**
+   * chars of result pages (and their requests) kept for repeat requests, 0
+   * turns the cache off.  Off by default, as only long running engines
+   * (JanusServer) see repeat requests.
+   */
+  static public int sResultCacheChars = 0;
+  private final ResultCache fResultCache = new ResultCache();
+  /** write each excerpt row as soon as its hit is ready instead of collecting all hits first */
+  static public boolean sStreamResults = true;
+  /** rows written between flushes when streaming (the first row is always flushed) */
+  static public int sStreamFlushRows = 16;
   
   public MFSearchServlet(String baseDir) throws IOException { super(baseDir); }
 
+  /** set once the index is known to exist, so long lived engines skip the file lock */
+  volatile boolean fIndexReady = false;
+
   /** creates the index if it does not already exist */
   public void createIndex() throws IOException {
+    if (fIndexReady) return;
+    synchronized (this) {
+      if (fIndexReady) return;
+      createIndexLocked(false);
+      fIndexReady = true;
+    }
+  }
+
+  /**
+   * brings an existing index up to date with the data directory, only
+   * reindexing quotations whose files were added, changed or removed
+   */
+  public void updateIndex() throws IOException {
+    synchronized (this) {
+      createIndexLocked(true);
+      fIndexReady = true;
+    }
+  }
+
+  private void createIndexLocked(boolean update) throws IOException {
     String indexDir = fBaseDir + "index";
     String docDir = fBaseDir + "data";
-    NGram.sBaseDir = fBaseDir;
-    NGram.sNGramSize = fNGramSize;
-    NGram.sWindowSize = fWindowSize;
+    EngineConfig config = getConfig();
 
     // lock on file to make this threadsafe
     File lockFile = new File(fBaseDir, "indexbuild.lock");
@@ -61,8 +117,11 @@ public class MFSearchServlet extends MFSearch {
       // index files if not done already
       if (!new File(indexDir).exists()) {
         try {
-          IndexUtils.indexDocs(docDir, indexDir);
+          IndexUtils.indexDocs(docDir, indexDir, config);
         } catch (RuntimeException e) { e.printStackTrace(System.err); SplitMF_XML.deleteRecursive(indexDir); throw e; }
+      } else if (update) {
+        // searchers pick up the new version when SearcherManager sees it is no longer current
+        IndexUtils.updateDocs(docDir, indexDir, config);
       }
     } finally {
       lock.release(); lock = null;
@@ -98,6 +157,32 @@ public class MFSearchServlet extends MFSearch {
     return runServletSearch(out, formData, true);
   }
   public int runServletSearch(PrintWriter out, Hashtable<String,String> uncleanFormData, boolean bOutputEmpty) {
+    if (sResultCacheChars <= 0) return runServletSearchUncached(out, uncleanFormData, bOutputEmpty);
+    long version;
+    try {
+      createIndex();
+      version = SearcherManager.get(fBaseDir + "index").getVersion();
+    } catch (Exception e) { return runServletSearchUncached(out, uncleanFormData, bOutputEmpty); }
+    String settings = CrossOverlaps.getSettings(getConfig());
+    String key = ResultCache.getKey(uncleanFormData, bOutputEmpty);
+    ResultCache.Entry cached = fResultCache.get(key, version, settings);
+    if (cached != null) { out.print(cached.fPage); return cached.fMatches; }
+    // output as usual while keeping a copy for the cache
+    ResultCache.CapturingWriter capture = new ResultCache.CapturingWriter(out, sResultCacheChars / 4);
+    PrintWriter cout = new ResultCache.CapturingPrintWriter(capture);
+    int matches = runServletSearchUncached(cout, uncleanFormData, bOutputEmpty);
+    cout.flush();
+    String page = capture.getCaptured();
+    if (page != null) fResultCache.put(key, version, settings, page, matches, sResultCacheChars);
+    return matches;
+  }
+
+  static void printError(PrintWriter out, Exception e) {
+    if (out instanceof ResultCache.CapturingPrintWriter) ((ResultCache.CapturingPrintWriter) out).fCapture.fFailed = true;
+    out.println("<p>"); e.printStackTrace(out);
+  }
+
+  int runServletSearchUncached(PrintWriter out, Hashtable<String,String> uncleanFormData, boolean bOutputEmpty) {
 
     // escape all form data to prevent XSS attacks
     Hashtable<String,String> formData = new Hashtable<String,String>();
@@ -109,21 +194,21 @@ public class MFSearchServlet extends MFSearch {
     // ensure index exists
     try {
       createIndex();
-    } catch (Exception e) { out.println("<p>"); e.printStackTrace(out); return 0; }
+    } catch (Exception e) { printError(out, e); return 0; }
 
     // query formats
     String queryfrom = formData.getOrDefault("queryfrom","");
     if (queryfrom.equals("stats")) {
       for (int i=0;i<ds.length;i++) {
         try {
-          DocQ[] h = runBaseQuery("+path:"+ds[i]); out.println("<p> Found "+h.length+" "+ds[i]+" quotations.");
+          DocQ[] h = runBaseQuery("+path:"+ds[i], DocQ.sTextFields); out.println("<p> Found "+h.length+" "+ds[i]+" quotations.");
           for (int m=0; m<h.length; m++) {
             if (h[m].name==null || h[m].name.length()<=0) out.println("<br>no name: "+h[m].originalQ);
             if (i!=0 && (h[m].link==null || h[m].link.length()<=0)) out.println("<br>no link: "+h[m].name);
             if (h[m].cite==null || h[m].cite.length()<=0) out.println("<br>no cite: "+h[m].name);
             if (h[m].originalQ==null || h[m].originalQ.length()<=0) out.println("<br>no originalQ: "+h[m].name);
           }
-        } catch (Exception e) { out.println("<p>"); e.printStackTrace(out); }
+        } catch (Exception e) { printError(out, e); }
       }
       return 0;
 
@@ -131,14 +216,14 @@ public class MFSearchServlet extends MFSearch {
       for (int i=0;i<ds.length;i++) {
         try {
           String lastpre="", prenames=""; int precount=0;
-          DocQ[] h = runBaseQuery("+path:"+ds[i]); out.println("<p> Found "+h.length+" "+ds[i]+" quotations.");
+          DocQ[] h = runBaseQuery("+path:"+ds[i], DocQ.sNameFields); out.println("<p> Found "+h.length+" "+ds[i]+" quotations.");
           java.util.Arrays.sort(h, DocQ.sComparator);
           for (int m=0; m<h.length; m++) {
             String[] pre=h[m].splitName();
             if (lastpre.equals(pre[0])) { prenames+=","+pre[1]; precount++; }
             else { if (precount>0) out.println("<br>"+lastpre+" "+precount+" - ("+prenames+")"); lastpre=pre[0]; prenames=""; precount=1; prenames=pre[1]; }
           } if (precount>0) out.println("<br>"+lastpre+" "+precount+" - ("+prenames+")");
-        } catch (Exception e) { out.println("<p>"); e.printStackTrace(out); }
+        } catch (Exception e) { printError(out, e); }
       }
       return 0;
 
@@ -164,13 +249,13 @@ public class MFSearchServlet extends MFSearch {
       int quotationsThatMatch = 0;
       try {
         // find all quotations in queryfrom
-        DocQ[] h = runBaseQuery("+path:"+queryfromN);
-        Object[] fh = new Object[h.length];
+        DocQ[] h = runBaseQuery("+path:"+queryfromN, DocQ.sTextFields);
+        Vector<Vector<FullHit>> fh = getCrossOverlapHits(queryfromN, h); // precomputed
+        if (fh == null) fh = runQueries(dataset, h, maxQuotationsToDisplay, minimumOverlapSize);
         byte[] dss = new byte[h.length];
         for (int m=0; m<h.length; m++) {
-          Vector<FullHit> fullhits = new Vector<FullHit>(); fh[m]=fullhits;
+          Vector<FullHit> fullhits = fh.get(m);
           dss[m]=0;
-          runQuery(dataset, "", h[m].originalQ, maxQuotationsToDisplay, minimumOverlapSize, fullhits);
           for (int x=0; x<fullhits.size(); x++) {
             byte b = ds2Enum(fullhits.get(x).docq.path);
             if (b!=0) dss[m]|=b; else throw new Exception("Invalid path="+fullhits.get(x).docq.path);
@@ -204,7 +289,7 @@ public class MFSearchServlet extends MFSearch {
         int outputNumber=1;
         for (int m=0; m<h.length; m++) {
           if ((dss[m]&target) != target) continue;
-          Vector<FullHit> fullhits = (Vector<FullHit>)fh[m];
+          Vector<FullHit> fullhits = fh.get(m);
           if (fullhits.size()<=0) continue;
           out.println(" <tr><td colspan=3 bgcolor='#C0C0C0'>&nbsp;"+outputNumber+". "+getQuoteLink(h[m])+"</td>");
           outputNumber++;
@@ -213,13 +298,13 @@ public class MFSearchServlet extends MFSearch {
           for (int x=0; x<fullhits.size(); x++) {
             byte b = ds2Enum(fullhits.get(x).docq.path);
             if ((b&target) != b) continue;
-            doERHit(out, h[m].originalQ, false, -1, fullhits.get(x));
+            doERHit(getConfig(), out, h[m].originalQ, false, -1, fullhits.get(x));
           }
           out.println(" <tr><td colspan=3 style='line-height:10px;'>&nbsp;</td></tr>");
           quotationsThatMatch += fullhits.size();
         }
         out.println("</table><br>");
-      } catch (Exception e) { out.println("<p>"); e.printStackTrace(out); }
+      } catch (Exception e) { printError(out, e); }
       return quotationsThatMatch;
 
     } else if (queryfrom.equals("") || queryfrom.equals("textfield")) {
@@ -237,14 +322,24 @@ public class MFSearchServlet extends MFSearch {
       if ("excerpt".compareToIgnoreCase(displayformat) == 0) { bDF_Excerpt=true; bDF_Document=false; }
       else if ("document".compareToIgnoreCase(displayformat) == 0) { bDF_Excerpt=false; bDF_Document=true; }
 
+      if (sStreamResults) {
+        StreamingReport report = new StreamingReport(getConfig(), out, data, bDF_Excerpt, bDF_Document);
+        try {
+          int err = runQuery(dataset, keywords, data, maxQuotationsToDisplay, minimumOverlapSize, report);
+          if (err==-1) { if (bOutputEmpty) out.println("<p> Empty query."); return 0; }
+          report.end(keywords);
+        } catch (Exception e) { report.closeTable(); printError(out, e); }
+        return report.fHits; // quotationsThatMatch
+      }
+
       // normal runs
       Vector<FullHit> allFullHits = new Vector<FullHit>();
       try {
         int err = runQuery(dataset, keywords, data, maxQuotationsToDisplay, minimumOverlapSize, allFullHits);
         if (err==-1) { if (bOutputEmpty) out.println("<p> Empty query."); return 0; }
-        if (bDF_Excerpt) { doExcerptReport(out, data, bDF_Document, allFullHits); }
+        if (bDF_Excerpt) { doExcerptReport(getConfig(), out, data, bDF_Document, allFullHits); }
         if (bDF_Document) { doDocumentReport(out, keywords, data, allFullHits); }
-      } catch (Exception e) { out.println("<p>"); e.printStackTrace(out); }
+      } catch (Exception e) { printError(out, e); }
       return allFullHits.size(); // quotationsThatMatch
 
     } else {
@@ -253,81 +348,389 @@ public class MFSearchServlet extends MFSearch {
     }
   }
 
+  /**
+   * threads running the per quotation queries of a cross-dataset report, 1 runs them on the calling thread;
+   * the pool is sized when first used, so later changes only switch between it and the calling thread
+   */
+  static public int sCrossDatasetThreads = Runtime.getRuntime().availableProcessors();
+  static private ExecutorService sCrossDatasetPool;
+
+  static synchronized ExecutorService getCrossDatasetPool() {
+    if (sCrossDatasetPool == null) {
+      sCrossDatasetPool = Executors.newFixedThreadPool(sCrossDatasetThreads, new ThreadFactory() {
+        int fCount = 0;
+        public synchronized Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "crossdataset-" + (fCount++));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return sCrossDatasetPool;
+  }
+
+  /**
+   * Runs the quotations h as queries, in parallel on the cross-dataset pool.
+   * @return hits of each quotation, in the order of h
+   */
+  Vector<Vector<FullHit>> runQueries(final String dataset, final DocQ[] h, final int maxQuotationsToDisplay, final int minimumOverlapSize) throws Exception {
+    Vector<Vector<FullHit>> fh = new Vector<Vector<FullHit>>(h.length);
+    if (sCrossDatasetThreads <= 1) {
+      for (int m=0; m<h.length; m++) {
+        Vector<FullHit> fullhits = new Vector<FullHit>(); fh.add(fullhits);
+        runQuery(dataset, "", h[m].originalQ, maxQuotationsToDisplay, minimumOverlapSize, fullhits);
+      }
+      return fh;
+    }
+    ExecutorService pool = getCrossDatasetPool();
+    Vector<Future<Vector<FullHit>>> futures = new Vector<Future<Vector<FullHit>>>();
+    try {
+      for (int m=0; m<h.length; m++) {
+        final String originalQ = h[m].originalQ;
+        futures.add(pool.submit(new Callable<Vector<FullHit>>() {
+          public Vector<FullHit> call() throws Exception {
+            Vector<FullHit> fullhits = new Vector<FullHit>();
+            runQuery(dataset, "", originalQ, maxQuotationsToDisplay, minimumOverlapSize, fullhits);
+            return fullhits;
+          }
+        }));
+      }
+      for (int m=0; m<h.length; m++) {
+        try {
+          fh.add(futures.get(m).get());
+        } catch (ExecutionException e) {
+          throw (e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
+      }
+    } finally {
+      for (int m=0; m<futures.size(); m++) futures.get(m).cancel(false); // after a failure
+    }
+    return fh;
+  }
+
+  private volatile CrossOverlaps fCrossOverlaps;
+
+  /**
+   * Runs the cross-dataset queries of every dataset and stores their hits in
+   * the index directory (CrossOverlaps), so the reports need not run them.
+   * @return number of quotation pairs that overlap
+   */
+  public int createCrossOverlaps() throws Exception {
+    createIndex();
+    long version = SearcherManager.get(fBaseDir + "index").getVersion();
+    CrossOverlaps co = new CrossOverlaps(version, CrossOverlaps.getSettings(getConfig()));
+    int pairs = 0;
+    for (int i=0;i<ds.length;i++) {
+      DocQ[] h = runBaseQuery("+path:"+ds[i], DocQ.sTextFields);
+      Vector<Vector<FullHit>> fh = runQueries("-path:"+ds[i], h, Integer.MAX_VALUE, 0);
+      co.put(ds[i], h, fh);
+      for (int m=0; m<h.length; m++) pairs += fh.get(m).size();
+    }
+    co.write(new File(fBaseDir + "index", CrossOverlaps.sFileName));
+    return pairs;
+  }
+
+  /**
+   * @return precomputed hits of each quotation in h (of dataset queryfromN),
+   *         or null if there are none for the current index
+   */
+  Vector<Vector<FullHit>> getCrossOverlapHits(String queryfromN, DocQ[] h) throws Exception {
+    long version = SearcherManager.get(fBaseDir + "index").getVersion();
+    CrossOverlaps co = fCrossOverlaps;
+    if (co == null || co.fIndexVersion != version || !co.fSettings.equals(CrossOverlaps.getSettings(getConfig()))) {
+      co = CrossOverlaps.read(new File(fBaseDir + "index", CrossOverlaps.sFileName), version, CrossOverlaps.getSettings(getConfig()));
+      if (co == null) return null;
+      fCrossOverlaps = co;
+    }
+    CrossOverlaps.Hit[][] hits = co.get(queryfromN, h);
+    if (hits == null) return null;
+    // quotations of the other datasets
+    HashMap<String,DocQ> docs = new HashMap<String,DocQ>();
+    for (int i=0;i<ds.length;i++) {
+      if (ds[i].equals(queryfromN)) continue;
+      DocQ[] d = runBaseQuery("+path:"+ds[i], DocQ.sTextFields);
+      for (int m=0; m<d.length; m++) {
+        if (docs.put(d[m].path+"/"+d[m].name, d[m]) != null) return null; // name not unique
+      }
+    }
+    Vector<Vector<FullHit>> fh = new Vector<Vector<FullHit>>(h.length);
+    for (int m=0; m<h.length; m++) {
+      Vector<FullHit> fullhits = new Vector<FullHit>(); fh.add(fullhits);
+      for (int x=0; x<hits[m].length; x++) {
+        FullHit fullHit = new FullHit();
+        fullHit.docq = docs.get(hits[m][x].path+"/"+hits[m][x].name);
+        if (fullHit.docq == null) return null;
+        fullHit.queryOverlaps = HitRanges.fromPairs(hits[m][x].queryOverlaps);
+        fullHit.hitOverlaps = HitRanges.fromPairs(hits[m][x].hitOverlaps);
+        fullhits.add(fullHit);
+      }
+    }
+    return fh;
+  }
+
   static class DocQ {
     String path, name, link, originalQ, cite;
-    DocQ(Document doc) {
+    NGram.Fingerprints fingerprints; // null for older indexes
+    /** fields of doc not loaded by its selector are left null */
+    DocQ(Document doc, EngineConfig config) {
+      fingerprints=NGram.Fingerprints.decode(doc.getBinaryValue("fingerprints"), config);
       path=doc.get("path");
       name=doc.get("name").toLowerCase().trim();
       link=doc.get("L");
-      originalQ=NGramUtils.truncateAt(doc.get("original"), "<");
-      cite=NGramUtils.extractTag(doc.get("original"),"<cite>","</cite>"); }
+      if (doc.getFieldable("originalQ")!=null) {
+        // split when indexed
+        originalQ=doc.get("originalQ");
+        cite=doc.get("cite");
+      } else if (doc.getFieldable("original")!=null) {
+        // older index
+        String original=doc.get("original");
+        originalQ=NGramUtils.truncateAt(original, "<");
+        cite=NGramUtils.extractTag(original,"<cite>","</cite>");
+      } }
+
+    /** name and link only */
+    static final FieldSelector sNameFields = new DocQFieldSelector(new String[] {"path","name","L"});
+    /** also the quotation text and cite */
+    static final FieldSelector sTextFields = new DocQFieldSelector(new String[] {"path","name","L","originalQ","cite"});
+    /** also the fingerprints for highlighting */
+    static final FieldSelector sHitFields = new DocQFieldSelector(new String[] {"path","name","L","originalQ","cite","fingerprints"});
     String[] splitName() {
       int t=name.lastIndexOf(" "); if (name.charAt(t+1)=='(') { t=name.lastIndexOf(" ",t-1); }
       return new String[] {name.substring(0,t),name.substring(t+1)};
     }
     static DocQComparator sComparator = new DocQComparator();
   }
+  /**
+   * Loads only the given fields.  The full original is loaded lazily, it is
+   * only read for indexes without originalQ (see DocQ).
+   */
+  static class DocQFieldSelector implements FieldSelector {
+    private static final long serialVersionUID = 1L;
+    final Set<String> fFields;
+    DocQFieldSelector(String[] fields) { fFields = new java.util.HashSet<String>(java.util.Arrays.asList(fields)); }
+    public FieldSelectorResult accept(String fieldName) {
+      if (fFields.contains(fieldName)) return FieldSelectorResult.LOAD;
+      if (fieldName.equals("original") && fFields.contains("originalQ")) return FieldSelectorResult.LAZY_LOAD;
+      return FieldSelectorResult.NO_LOAD;
+    }
+  }
   static class DocQComparator implements java.util.Comparator<DocQ> {
     public int compare(DocQ a, DocQ b) { return a.name==null ? -1 : a.name.compareTo(b.name); }
   }
 
-  DocQ[] runBaseQuery(String fullQuery) throws Exception {
-    // query
+  /** receives the hits of a query in rank order */
+  interface DocQHandler {
+    /** @return false to stop loading further hits */
+    boolean hit(DocQ docq) throws Exception;
+  }
+
+  DocQ[] runBaseQuery(String fullQuery, FieldSelector fields) throws Exception {
+    final Vector<DocQ> r = new Vector<DocQ>();
+    runBaseQuery(parseQuery(fullQuery), null, null, fields, new DocQHandler() {
+      public boolean hit(DocQ docq) { r.add(docq); return true; }
+    });
+    return r.toArray(new DocQ[r.size()]);
+  }
+
+  static Query parseQuery(String fullQuery) throws Exception {
     String field = "contents";
     Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_CURRENT);
     QueryParser parser = new QueryParser(Version.LUCENE_CURRENT, field, analyzer);
-    Query query = parser.parse(fullQuery);
-    // index
-    String indexDir = fBaseDir + "index";
-    IndexReader reader = IndexReader.open(FSDirectory.open(new File(indexDir)));
-    Searcher searcher = new IndexSearcher(reader);
-    TopScoreDocCollector collector = TopScoreDocCollector.create(100000, true); // TODO: store all hits
-    // search
-    searcher.search(query, collector);
-    ScoreDoc[] hits = collector.topDocs().scoreDocs;
-    DocQ[] r = new DocQ[hits.length];
-    for (int m=0; m<hits.length; m++) { r[m] = new DocQ(searcher.doc(hits[m].doc)); }
-    return r;
-  }
-
-  int runQuery(String dataset, String keywords, String data, int maxQuotationsToDisplay, int minimumOverlapSize, Vector<FullHit> allFullHits) throws Exception {
+    return parser.parse(fullQuery);
+  }
+
+  /** stands in for the ngram clauses when parsing, replaced by the built ngram query */
+  static final String sNGramPlaceholder = "janus0ngrams0placeholder";
+
+  /**
+   * @return q with every clause matching term swapped for replacement
+   */
+  static Query replaceTerm(Query q, Term term, Query replacement) {
+    if (q instanceof TermQuery && ((TermQuery) q).getTerm().equals(term))
+      return replacement;
+    if (q instanceof BooleanQuery) {
+      BooleanClause[] clauses = ((BooleanQuery) q).getClauses();
+      for (int i = 0; i < clauses.length; i++) clauses[i].setQuery(replaceTerm(clauses[i].getQuery(), term, replacement));
+    }
+    return q;
+  }
+
+  /**
+   * Runs the query and loads each hit's document only as the handler asks for it.
+   * @param filter restricts the hits, can be null
+   * @param counter collects and ranks the hits, or null to take the top hits by score
+   * @param fields DocQ fields to load
+   */
+  void runBaseQuery(Query query, Filter filter, NGramCountCollector counter, FieldSelector fields, DocQHandler handler) throws Exception {
+    // index (shared between queries)
+    SearcherManager manager = SearcherManager.get(fBaseDir + "index");
+    IndexSearcher searcher = manager.acquire();
+    try {
+      ScoreDoc[] hits;
+      if (counter != null) {
+        searcher.search(query, filter, counter);
+        hits = counter.getHits();
+      } else {
+        TopScoreDocCollector collector = TopScoreDocCollector.create(sMaxHits, true); // TODO: store all hits
+        // search
+        searcher.search(query, filter, collector);
+        hits = collector.topDocs().scoreDocs;
+      }
+      for (int m=0; m<hits.length; m++) {
+        if (!handler.hit(new DocQ(searcher.doc(hits[m].doc, fields), getConfig()))) break;
+      }
+    } finally {
+      manager.release(searcher);
+    }
+  }
+
+  /** receives the full hits of runQuery, a null hit marks truncated results */
+  interface FullHitHandler {
+    /** called once the query is known not to be empty, before any hits */
+    void start() throws Exception;
+    void hit(FullHit fullHit) throws Exception;
+  }
+
+  int runQuery(String dataset, String keywords, String data, int maxQuotationsToDisplay, int minimumOverlapSize, final Vector<FullHit> allFullHits) throws Exception {
+    return runQuery(dataset, keywords, data, maxQuotationsToDisplay, minimumOverlapSize, new FullHitHandler() {
+      public void start() {}
+      public void hit(FullHit fullHit) { allFullHits.add(fullHit); }
+    });
+  }
+
+  int runQuery(String dataset, String keywords, final String data, final int maxQuotationsToDisplay, final int minimumOverlapSize, final FullHitHandler handler) throws Exception {
       // get query parts
-      NGram.Winnowing wData = new NGram.Winnowing();
+      final EngineConfig config = getConfig();
+      NGram.Winnowing wData = new NGram.Winnowing(config);
       wData.winnow(data);
-      String ngramQuery = NGram.convertToQuery(wData);
-      String keywordsQuery = NGram.convertToNormalizedKeywordQuery(keywords);
+      Query ngramQuery = NGram.convertToNGramQuery(wData, config.fHashTerms);
+      String keywordsQuery = NGram.convertToNormalizedKeywordQuery(keywords, config);
       // empty query
-      if (keywordsQuery.equals("") && ngramQuery.equals("")) return -1;
+      if (keywordsQuery.equals("") && ngramQuery == null) return -1;
       // truncate results when no ngram query
       //if (ngramQuery.equals("")) maxQuotationsToDisplay = 10; // TODO: truncate value? none for now
       // combine query parts
       String fullQuery = dataset;
       if (!keywordsQuery.equals("")) fullQuery += (fullQuery.equals("") ? "" : " AND ") + "("+keywordsQuery+")";
-      if (!ngramQuery.equals("")) fullQuery += (fullQuery.equals("") ? "" : " AND ") + "("+ngramQuery+")";
+      if (ngramQuery != null) fullQuery += (fullQuery.equals("") ? "" : " AND ") + "("+sNGramPlaceholder+")";
+
+      // only the small dataset and keyword parts are parsed, the ngram query is built directly
+      Query query = parseQuery(fullQuery);
+      if (ngramQuery != null) query = replaceTerm(query, new Term("contents", sNGramPlaceholder), ngramQuery);
+      // count shared ngrams per hit, to rank large queries and drop weak hits before loading them
+      Filter filter = null;
+      NGramCountCollector counter = null;
+      if (ngramQuery instanceof ConstantScoreQuery) {
+        counter = new NGramCountCollector((NGramCountFilter) ((ConstantScoreQuery) ngramQuery).getFilter(), sMinSharedNGrams, sMaxHits, false);
+      } else if (ngramQuery != null && (sMinSharedNGrams > 1 || sRankByOverlap)) {
+        NGramCountFilter ngramCounts = new NGramCountFilter(NGram.getNGramTerms(wData, config.fHashTerms));
+        filter = ngramCounts;
+        counter = new NGramCountCollector(ngramCounts, sMinSharedNGrams, sMaxHits, !sRankByOverlap);
+      }
 
-      // execute the search
-      DocQ[] hits = runBaseQuery(fullQuery);
-      for (int m = 0; m < hits.length; m++) {
-        // matches
-        FullHit fullHit = new FullHit();
-        getMatchLocations(data, wData, hits[m].originalQ, fullHit.queryOverlaps, fullHit.hitOverlaps);
+      // execute the search, handing on each hit as soon as its matches are found
+      handler.start();
+      final NGram.Winnowing wQuery = wData;
+      final int[] count = new int[1];
+      DocQHandler hitHandler = new DocQHandler() {
+        public boolean hit(DocQ docq) throws Exception {
+          // matches
+          FullHit fullHit = new FullHit();
+          getMatchLocations(config, data, wQuery, docq.originalQ, docq.fingerprints, fullHit.queryOverlaps, fullHit.hitOverlaps);
+
+          // prune small cumulative overlaps
+          int overlapTotalSize = 0; for (int i = 0; i < fullHit.hitOverlaps.fSize; i++) { overlapTotalSize += fullHit.hitOverlaps.getEnd(i) - fullHit.hitOverlaps.getStart(i); }
+          if (overlapTotalSize < minimumOverlapSize) { return true; }
+
+          // truncate
+          if (count[0] >= maxQuotationsToDisplay) { handler.hit(null); return false; }
+
+          fullHit.docq = docq;
+          count[0]++;
+          handler.hit(fullHit);
+          return true;
+        }
+      };
+      int datasetMask = MemoryCorpus.getDatasetMask(dataset);
+      // the memory corpus ranks by shared ngram count, so only answers queries the index ranks that way too
+      if (sMemoryCorpus && (sRankByOverlap || ngramQuery instanceof ConstantScoreQuery) && keywordsQuery.equals("") && datasetMask >= 0) {
+        DocQ[] hits = getMemoryCorpus().search(wData, datasetMask, sMinSharedNGrams, sMaxHits);
+        for (int m = 0; m < hits.length; m++) { if (!hitHandler.hit(hits[m])) break; }
+      } else {
+        runBaseQuery(query, filter, counter, DocQ.sHitFields, hitHandler);
+      }
+      return 0;
+  }
 
-        // prune small cumulative overlaps
-        int overlapTotalSize = 0; for (Iterator<HitRange> iter = fullHit.hitOverlaps.iterator(); iter.hasNext();) { HitRange overlap = iter.next(); overlapTotalSize += overlap.end - overlap.start; }
-        if (overlapTotalSize < minimumOverlapSize) { continue; }
+  private volatile MemoryCorpus fMemoryCorpus;
 
-        // truncate
-        if (allFullHits.size() >= maxQuotationsToDisplay) { allFullHits.add(null); break; }
+  /**
+   * @return the in memory corpus of the current index version, loading it when the index changed
+   */
+  MemoryCorpus getMemoryCorpus() throws IOException {
+    SearcherManager manager = SearcherManager.get(fBaseDir + "index");
+    IndexSearcher searcher = manager.acquire();
+    try {
+      IndexReader reader = searcher.getIndexReader();
+      MemoryCorpus mc = fMemoryCorpus;
+      if (mc != null && mc.fVersion == reader.getVersion()) return mc;
+      synchronized (this) {
+        mc = fMemoryCorpus;
+        if (mc == null || mc.fVersion != reader.getVersion()) fMemoryCorpus = mc = new MemoryCorpus(reader, getConfig());
+        return mc;
+      }
+    } finally {
+      manager.release(searcher);
+    }
+  }
+
+  /**
+   * Excerpt and document reports written while the hits arrive.  Only the
+   * query overlaps are kept (for the document report), not the hits.
+   */
+  static class StreamingReport implements FullHitHandler {
+    final EngineConfig fConfig;
+    final PrintWriter fOut;
+    final String fData;
+    final boolean fExcerpt, fDocument;
+    final Vector<HitRanges> fQueryOverlaps = new Vector<HitRanges>();
+    int fHits = 0;
+    boolean fTableOpen = false;
+
+    StreamingReport(EngineConfig config, PrintWriter out, String data, boolean bDF_Excerpt, boolean bDF_Document) {
+      fConfig = config; fOut = out; fData = data; fExcerpt = bDF_Excerpt; fDocument = bDF_Document;
+    }
 
-        fullHit.docq = hits[m];
-        allFullHits.add(fullHit);
+    public void start() {
+      if (fExcerpt) { doERStart(fOut); fTableOpen = true; }
+    }
+
+    public void hit(FullHit fullHit) {
+      if (fullHit == null) { if (fExcerpt) fOut.println("<tr><td><i> results truncated </i></td></tr>"); return; }
+      fHits++;
+      if (fDocument) fQueryOverlaps.add(fullHit.queryOverlaps);
+      if (fExcerpt) {
+        doERHit(fConfig, fOut, fData, fDocument, fHits, fullHit);
+        if (fHits == 1 || fHits % sStreamFlushRows == 0) fOut.flush();
       }
-      return 0;
+    }
+
+    void end(String keywords) {
+      closeTable();
+      if (fDocument) {
+        doDocumentReportSorted(fOut, keywords, fData, HitRanges.union(fQueryOverlaps));
+      }
+    }
+
+    /** ends the excerpt table, so an error after some rows is not printed inside it */
+    void closeTable() {
+      if (fTableOpen) { doEREnd(fOut); fTableOpen = false; }
+    }
   }
 
   static class FullHit {
-    Vector<HitRange> queryOverlaps = new Vector<HitRange>();
-    Vector<HitRange> hitOverlaps = new Vector<HitRange>();
+    HitRanges queryOverlaps = new HitRanges();
+    HitRanges hitOverlaps = new HitRanges();
     DocQ docq;
   }
 
@@ -357,7 +760,7 @@ public class MFSearchServlet extends MFSearch {
       }
     }
   }
-  static void doERHit(PrintWriter out, String data, boolean bDF_Document, int resultCount, FullHit fullHit) {
+  static void doERHit(EngineConfig config, PrintWriter out, String data, boolean bDF_Document, int resultCount, FullHit fullHit) {
     out.println(" <tr>");
     // output link to quote
     String rc = (resultCount>0 ? ""+resultCount+": " : "");
@@ -380,7 +783,7 @@ public class MFSearchServlet extends MFSearch {
 
     // hits from input data
     out.println("   <table border=1 width='100%'>");
-    Vector<HitSection> hitSections = getHitSections(data, fullHit.queryOverlaps);
+    Vector<HitSection> hitSections = getHitSections(config, data, fullHit.queryOverlaps);
     for (Iterator<HitSection> iter = hitSections.iterator(); iter.hasNext();) {
       HitSection hs = iter.next();
       out.println(" <tr><td width=50>");
@@ -394,7 +797,7 @@ public class MFSearchServlet extends MFSearch {
     out.println("  </td>");
     out.println(" </tr>");
   }
-  static void doExcerptReport(PrintWriter out, String data, boolean bDF_Document, Vector<FullHit> allFullHits) {
+  static void doERStart(PrintWriter out) {
     // excerpt report format
     out.println("<u>Excerpt Report:</u><br>");
     out.println("<table>");
@@ -402,18 +805,32 @@ public class MFSearchServlet extends MFSearch {
     out.println("  <th width='15%'>Quote Name</th>");
     out.println("  <th>Quote & Overlaps</th>");
     out.println(" </tr>");
-
+  }
+  static void doEREnd(PrintWriter out) {
+    out.println("</table><br>");
+  }
+  static void doExcerptReport(EngineConfig config, PrintWriter out, String data, boolean bDF_Document, Vector<FullHit> allFullHits) {
+    doERStart(out);
     int resultCount = 1;
     for (int m = 0; m < allFullHits.size(); m++) {
       FullHit fullHit = allFullHits.get(m);
       if (fullHit == null) { out.println("<tr><td><i> results truncated </i></td></tr>"); break; }
-      doERHit(out, data, bDF_Document, resultCount, fullHit);
+      doERHit(config, out, data, bDF_Document, resultCount, fullHit);
       resultCount++;
     }
-    out.println("</table><br>");
+    doEREnd(out);
   }
 
   static void doDocumentReport(PrintWriter out, String keywords, String data, Vector<FullHit> allFullHits) {
+    Vector<HitRanges> queryOverlaps = new Vector<HitRanges>();
+    for (int m = 0; m < allFullHits.size(); m++) {
+      FullHit fullHit = allFullHits.get(m);
+      if (fullHit != null) queryOverlaps.add(fullHit.queryOverlaps);
+    }
+    doDocumentReportSorted(out, keywords, data, HitRanges.union(queryOverlaps)); // sorted hit overlaps
+  }
+  /** allQueryOverlaps must be sorted */
+  static void doDocumentReportSorted(PrintWriter out, String keywords, String data, HitRanges allQueryOverlaps) {
     if (!keywords.equals("")) {
       out.println("<u>Keywords:</u><br>");
       out.println(keywords);
@@ -421,34 +838,27 @@ public class MFSearchServlet extends MFSearch {
     }
     // output original data in full and connect above to points within full data
     out.println("<u>Document Report:</u><br>");
-    doDRData(out, data, allFullHits);
+    doDRData(out, data, allQueryOverlaps);
     out.println("<br>");
   }
-  static void doDRData(PrintWriter out, String data, Vector<FullHit> allFullHits) {
+  static void doDRData(PrintWriter out, String data, HitRanges allQueryOverlaps) {
     // document report format
-    Vector<HitRange> allQueryOverlaps = new Vector<HitRange>();
-    for (int m = 0; m < allFullHits.size(); m++) {
-      FullHit fullHit = allFullHits.get(m);
-      if (fullHit != null) allQueryOverlaps.addAll(fullHit.queryOverlaps);
-    }
-    Collections.sort(allQueryOverlaps, HitRange.sComparator); // sort hit overlaps
-
     int dataLength = data.length();
     int lastOutputLocation = 0;
-    for (Iterator<HitRange> iter = allQueryOverlaps.iterator(); iter.hasNext();) {
-      HitRange overlap = iter.next();
-      if (lastOutputLocation > overlap.start) continue;
-      out.print(data.substring(lastOutputLocation, overlap.start));
-      lastOutputLocation = overlap.start;
+    for (int i = 0; i < allQueryOverlaps.fSize; i++) {
+      int start = allQueryOverlaps.getStart(i), end = allQueryOverlaps.getEnd(i);
+      if (lastOutputLocation > start) continue;
+      out.write(data, lastOutputLocation, start - lastOutputLocation);
+      lastOutputLocation = start;
       // prequote
-      out.print("<a name='A" + overlap.start + "'/>" + sStartMarking);
+      out.print("<a name='A" + start + "'/>" + sStartMarking);
       // quote
-      out.print(data.substring(lastOutputLocation, overlap.end + 1));
-      lastOutputLocation = overlap.end + 1;
+      out.write(data, lastOutputLocation, end + 1 - lastOutputLocation);
+      lastOutputLocation = end + 1;
       // postquote
       out.print(sEndMarking);
     }
-    out.print(data.substring(lastOutputLocation, dataLength));
+    out.write(data, lastOutputLocation, dataLength - lastOutputLocation);
   }
 
   static public class HitSection {
@@ -457,22 +867,22 @@ public class MFSearchServlet extends MFSearch {
     public HitSection(int hitLocation, String hitValue) { fHitLocation = hitLocation; fHitValue = hitValue; }
   }
 
-  static public String getMarkedData(String data, Vector<HitRange> overlaps, String startMarking, String endMarking) {
+  static public String getMarkedData(String data, HitRanges overlaps, String startMarking, String endMarking) {
     StringBuffer sb = new StringBuffer();
     int dataLength = data.length();
     int lastOutputLocation = 0;
-    for (Iterator<HitRange> iter = overlaps.iterator(); iter.hasNext();) {
-      HitRange overlap = iter.next();
-      if (overlap.start > dataLength || overlap.end > dataLength || overlap.start<0 || overlap.end<0) continue; // display of quote could be truncated so dropping some overlaps
-      if (lastOutputLocation > overlap.start)
-        throw new RuntimeException("Invalid " + lastOutputLocation + " " + overlap.start + " " + overlap.end);
-      sb.append(data.substring(lastOutputLocation, overlap.start));
-      lastOutputLocation = overlap.start;
+    for (int i = 0; i < overlaps.fSize; i++) {
+      int start = overlaps.getStart(i), end = overlaps.getEnd(i);
+      if (start > dataLength || end > dataLength || start<0 || end<0) continue; // display of quote could be truncated so dropping some overlaps
+      if (lastOutputLocation > start)
+        throw new RuntimeException("Invalid " + lastOutputLocation + " " + start + " " + end);
+      sb.append(data.substring(lastOutputLocation, start));
+      lastOutputLocation = start;
       // prequote
       sb.append(startMarking);
       // quote
-      sb.append(data.substring(lastOutputLocation, overlap.end + 1));
-      lastOutputLocation = overlap.end + 1;
+      sb.append(data.substring(lastOutputLocation, end + 1));
+      lastOutputLocation = end + 1;
       // postquote
       sb.append(endMarking);
     }
@@ -483,51 +893,53 @@ public class MFSearchServlet extends MFSearch {
   /**
    * Combine together hit overlaps found close together into hit sections.
    */
-  static public Vector<HitSection> getHitSections(String data, Vector<HitRange> queryOverlaps) {
+  static public Vector<HitSection> getHitSections(String data, HitRanges queryOverlaps) {
+    return getHitSections(EngineConfig.getDefault(), data, queryOverlaps);
+  }
+
+  static public Vector<HitSection> getHitSections(EngineConfig config, String data, HitRanges queryOverlaps) {
+    int maxSeparation = config.fMaxSeparation;
     // hits from input data
     Vector<HitSection> results = new Vector<HitSection>();
     StringBuffer sb = new StringBuffer();
     int dataLength = data.length();
     int lastOutputLocation = 0;
     int startHit = -1;
-    for (Iterator<HitRange> iter = queryOverlaps.iterator(); iter.hasNext();) {
-      HitRange overlap = iter.next();
-      // debugging
-      // System.out.println("overlap = " + overlap.startInQuery + " " +
-      // overlap.endInQuery);
-      if (lastOutputLocation > overlap.start)
+    for (int i = 0; i < queryOverlaps.fSize; i++) {
+      int start = queryOverlaps.getStart(i), end = queryOverlaps.getEnd(i);
+      if (lastOutputLocation > start)
         continue;
-      if (overlap.start - lastOutputLocation > sMaxSeparation) {
+      if (start - lastOutputLocation > maxSeparation) {
         // new quote section
         if (lastOutputLocation > 0) {
-          String s = data.substring(lastOutputLocation, getCutLocation(1, data, lastOutputLocation, NGram.sWindowSize) + 1);
+          String s = data.substring(lastOutputLocation, getCutLocation(1, data, lastOutputLocation, config.fWindowSize) + 1);
           sb.append(NGramUtils.truncateAt(s,"----")); // this is the break between alldata-*.txt quotes
           sb.append("\n");
           results.add(new HitSection(startHit, sb.toString()));
           startHit = -1;
           sb = new StringBuffer();
         }
-        lastOutputLocation = getCutLocation(-1, data, overlap.start, NGram.sWindowSize);
+        lastOutputLocation = getCutLocation(-1, data, start, config.fWindowSize);
       }
       if (startHit < 0) {
-        startHit = overlap.start;
-        String s = data.substring(lastOutputLocation, overlap.start);
+        startHit = start;
+        String s = data.substring(lastOutputLocation, start);
         sb.append(NGramUtils.trimFront(s,"----")); // this is the break between alldata-*.txt quotes
       } else {
         // TODO: split in middle on ----?
-        sb.append(data.substring(lastOutputLocation, overlap.start));
+        sb.append(data.substring(lastOutputLocation, start));
       }
-      lastOutputLocation = overlap.start;
+      lastOutputLocation = start;
       // prequote
       sb.append(sStartMarking);
       // quote
-      sb.append(data.substring(lastOutputLocation, overlap.end + 1));
-      lastOutputLocation = overlap.end + 1;
+      sb.append(data.substring(lastOutputLocation, end + 1));
+      lastOutputLocation = end + 1;
       // postquote
       sb.append(sEndMarking);
     }
-    if (dataLength > lastOutputLocation + sMaxSeparation / 2) {
-      String enddata = data.substring(lastOutputLocation, getCutLocation(1, data, lastOutputLocation, NGram.sWindowSize) + 1);
+    if (dataLength > lastOutputLocation + maxSeparation / 2) {
+      String enddata = data.substring(lastOutputLocation, getCutLocation(1, data, lastOutputLocation, config.fWindowSize) + 1);
       sb.append(NGramUtils.truncateAt(enddata,"----")); // this is the break between alldata-*.txt quotes
       sb.append("\n");
     } else {
@@ -0,0 +1,165 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+package janusengine;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * All quotations of an index held in memory with an inverted index from ngram
+ * token hash to the quotations containing it, so ngram overlap queries need no
+ * disk access.  Postings are kept in one int array, found through an open
+ * addressing table of token hashes.  Immutable once loaded, one is built per
+ * index version (see MFSearchServlet.sMemoryCorpus).
+ */
+public class MemoryCorpus {
+
+  final long fVersion; // index version this was loaded from
+  final MFSearchServlet.DocQ[] fDocs;
+  final byte[] fDataset; // MFSearchServlet.ds2Enum of each doc's path
+
+  // token hash -> fPostings[fStart[slot] .. fStart[slot]+fCount[slot]), fCount 0 marks an empty slot
+  final long[] fKeys;
+  final int[] fStart;
+  final int[] fCount;
+  final int fMask;
+  final int[] fPostings;
+
+  /**
+   * Loads every live document of reader, uses the stored fingerprints where
+   * they match the current winnowing settings and winnows the rest.
+   */
+  MemoryCorpus(IndexReader reader, EngineConfig config) throws IOException {
+    fVersion = reader.getVersion();
+    int maxDoc = reader.maxDoc();
+    MFSearchServlet.DocQ[] docs = new MFSearchServlet.DocQ[maxDoc];
+    NGram.Fingerprints[] fingerprints = new NGram.Fingerprints[maxDoc];
+    int size = 0;
+    long pairs = 0;
+    for (int i = 0; i < maxDoc; i++) {
+      if (reader.isDeleted(i)) continue;
+      MFSearchServlet.DocQ d = new MFSearchServlet.DocQ(reader.document(i, MFSearchServlet.DocQ.sHitFields), config);
+      if (d.fingerprints == null) {
+        NGram.Winnowing w = new NGram.Winnowing(config);
+        w.winnow(d.originalQ);
+        d.fingerprints = NGram.Fingerprints.create(w);
+      }
+      fingerprints[size] = d.fingerprints;
+      docs[size++] = d;
+      pairs += d.fingerprints.fHashes.length;
+    }
+    fDocs = Arrays.copyOf(docs, size);
+    fDataset = new byte[size];
+    for (int i = 0; i < size; i++) fDataset[i] = MFSearchServlet.ds2Enum(fDocs[i].path);
+
+    // table at most half full
+    int capacity = 16;
+    while (capacity < pairs * 2) capacity <<= 1;
+    fKeys = new long[capacity];
+    fStart = new int[capacity];
+    fCount = new int[capacity];
+    fMask = capacity - 1;
+    // count postings per hash, then lay them out and fill them (fingerprint hashes are distinct per doc)
+    for (int d = 0; d < size; d++) {
+      long[] h = fingerprints[d].fHashes;
+      for (int i = 0; i < h.length; i++) fCount[insert(h[i])]++;
+    }
+    int offset = 0;
+    for (int s = 0; s < capacity; s++) { fStart[s] = offset; offset += fCount[s]; }
+    fPostings = new int[offset];
+    int[] filled = new int[capacity];
+    for (int d = 0; d < size; d++) {
+      long[] h = fingerprints[d].fHashes;
+      for (int i = 0; i < h.length; i++) { int s = find(h[i]); fPostings[fStart[s] + filled[s]++] = d; }
+    }
+  }
+
+  static int slot(long hash) {
+    hash ^= (hash >>> 33);
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= (hash >>> 33);
+    return (int) hash;
+  }
+
+  /** @return slot of hash, claiming an empty one if it is new */
+  private int insert(long hash) {
+    int s = slot(hash) & fMask;
+    while (fCount[s] != 0 && fKeys[s] != hash) s = (s + 1) & fMask;
+    fKeys[s] = hash;
+    return s;
+  }
+
+  /** @return slot of hash, or -1 */
+  int find(long hash) {
+    int s = slot(hash) & fMask;
+    while (fCount[s] != 0) {
+      if (fKeys[s] == hash) return s;
+      s = (s + 1) & fMask;
+    }
+    return -1;
+  }
+
+  public int size() {
+    return fDocs.length;
+  }
+
+  /**
+   * @return mask of datasets allowed by a dataset restriction of the form
+   *         "", "+path:xx" or "-path:xx", or -1 for anything else
+   */
+  static int getDatasetMask(String dataset) {
+    byte all = 0; for (int i = 0; i < MFSearchServlet.dsEnum.length; i++) all |= MFSearchServlet.dsEnum[i];
+    if (dataset.equals("")) return all;
+    if (dataset.length() != 8 || !dataset.substring(1, 6).equals("path:")) return -1;
+    byte b = MFSearchServlet.ds2Enum(dataset.substring(6));
+    if (b == 0) return -1;
+    if (dataset.charAt(0) == '+') return b;
+    if (dataset.charAt(0) == '-') return all & ~b;
+    return -1;
+  }
+
+  /**
+   * @param datasetMask datasets to search (see getDatasetMask)
+   * @return quotations sharing at least minShared distinct ngrams with w, most
+   *         shared first (ties in index order), at most maxHits
+   */
+  public MFSearchServlet.DocQ[] search(NGram.Winnowing w, int datasetMask, int minShared, int maxHits) {
+    int[] counts = new int[fDocs.length];
+    int[] touched = new int[64];
+    int touchedSize = 0;
+    long[] hashes = w.getTokenHashes().clone();
+    Arrays.sort(hashes);
+    for (int i = 0; i < hashes.length; i++) {
+      if (i > 0 && hashes[i] == hashes[i - 1]) continue; // count distinct ngrams
+      int s = find(hashes[i]);
+      if (s < 0) continue;
+      for (int p = fStart[s], end = p + fCount[s]; p < end; p++) {
+        int d = fPostings[p];
+        if ((fDataset[d] & datasetMask) == 0) continue;
+        if (counts[d]++ == 0) {
+          if (touchedSize == touched.length) touched = Arrays.copyOf(touched, touchedSize * 2);
+          touched[touchedSize++] = d;
+        }
+      }
+    }
+    // rank as (count desc, doc asc) packed into longs
+    long[] ranked = new long[touchedSize];
+    int size = 0;
+    for (int i = 0; i < touchedSize; i++) {
+      int d = touched[i];
+      if (counts[d] >= Math.max(1, minShared)) ranked[size++] = ((long) (Integer.MAX_VALUE - counts[d]) << 32) | d;
+    }
+    Arrays.sort(ranked, 0, size);
+    size = Math.min(size, maxHits);
+    MFSearchServlet.DocQ[] r = new MFSearchServlet.DocQ[size];
+    for (int i = 0; i < size; i++) r[i] = fDocs[(int) ranked[i]];
+    return r;
+  }
+}
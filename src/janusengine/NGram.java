@@ -8,16 +8,31 @@
 package janusengine;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.CharArrayReader;
 import java.io.CharArrayWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Vector;
 
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.NumericUtils;
 
 /**
  * NGram signature for query and documents to allow for overlap matching.
@@ -26,14 +41,35 @@ public class NGram {
 
   static final boolean sDebug = false;
 
+  // defaults for EngineConfig.getDefault()
   static public int sWindowSize = 10;
   static public int sNGramSize = 20;
+  /**
+   * Use the O(1) rolling hash instead of rehashing every ngram.  This selects
+   * different ngrams, so it is recorded in the index manifest, which searches
+   * and updates follow.  Indexes from before that have no record, so they
+   * are still searched with this setting.
+   */
+  static public boolean sRollingHash = false;
+
+  /**
+   * Index ngrams as fixed width hash terms in their own field (sHashTermField)
+   * instead of as token text in contents.  The form is recorded in the index
+   * manifest, which searches and updates follow, so this only matters when
+   * building an index.
+   */
+  static public boolean sHashTerms = false;
+  static public final String sHashTermField = "ngrams";
+
+  /**
+   * Queries with more ngrams than this are run as a filter rather than a
+   * clause per ngram, must be at most BooleanQuery.getMaxClauseCount().
+   */
+  static public int sMaxNGramClauses = 1024;
 
   static public String sBaseDir = "./";
   static public String sSubwordMappingsFile = "mappings.cfg";
 
-  static private Object sLock = new Object();
-
   // -----------------------
   // static public methods
   // -----------------------
@@ -84,10 +120,14 @@ public class NGram {
    * Handles case folding and mappings.
    */
   static String convertToNormalized(String data) {
+    return convertToNormalized(data, EngineConfig.getDefault());
+  }
+
+  static String convertToNormalized(String data, EngineConfig config) {
     StringBuffer sb = new StringBuffer();
     char[] buffer = new char[1024];
     String q = data.toLowerCase();
-    NGramUtils.BaseReader r = new NGramUtils.MFReader(new NGramUtils.ReaderToLocationReader(new StringReader(q)), sBaseDir + sSubwordMappingsFile);
+    NGramUtils.BaseReader r = new NGramUtils.MFReader(new NGramUtils.ReaderToLocationReader(new StringReader(q)), config.getSubwordMappingsPath());
     try {
       for (;;) {
         int i = r.read(buffer);
@@ -104,13 +144,17 @@ public class NGram {
    * Handles case folding and mappings, preserves AND, OR, NOT if in capitals.
    */
   static String convertToNormalizedKeywordQuery(String keywordQuery) {
+    return convertToNormalizedKeywordQuery(keywordQuery, EngineConfig.getDefault());
+  }
+
+  static String convertToNormalizedKeywordQuery(String keywordQuery, EngineConfig config) {
     StringBuffer sb = new StringBuffer();
     char[] buffer = new char[1024];
     Vector<String> splitQuery = splitBoolean(keywordQuery);
     for (Iterator<String> iter = splitQuery.iterator(); iter.hasNext();) {
       // non boolean value
       String q = iter.next().toLowerCase();
-      NGramUtils.BaseReader r = new NGramUtils.MFReader(new NGramUtils.ReaderToLocationReader(new StringReader(q)), sBaseDir + sSubwordMappingsFile);
+      NGramUtils.BaseReader r = new NGramUtils.MFReader(new NGramUtils.ReaderToLocationReader(new StringReader(q)), config.getSubwordMappingsPath());
       try {
         for (;;) {
           int i = r.read(buffer);
@@ -137,6 +181,10 @@ public class NGram {
    * values separated by spaces.
    */
   static public CombinedDocument createDocumentReader(Reader r, String extraData) {
+    return createDocumentReader(r, extraData, EngineConfig.getDefault());
+  }
+
+  static public CombinedDocument createDocumentReader(Reader r, String extraData, EngineConfig config) {
     try {
       if (!(r instanceof BufferedReader))
         r = new BufferedReader(r);
@@ -144,7 +192,7 @@ public class NGram {
       CombinedDocument result = new CombinedDocument();
 
       // get ngrams and normalized form
-      result.w = new NGram.Winnowing(true);
+      result.w = new NGram.Winnowing(config, true);
       result.w.winnow(r);
 
       // combine normalized form, extra data, and ngrams
@@ -152,12 +200,14 @@ public class NGram {
       caw.write(result.w.fNormalizedOutput);
       caw.write("\n");
       if (extraData != null) {
-        caw.write(NGram.convertToNormalized(extraData)); // convert extra data for consistent search
+        caw.write(NGram.convertToNormalized(extraData, config)); // convert extra data for consistent search
         caw.write("\n");
       }
-      for (Iterator<NGram.Entry> iter = result.w.fOutputEntries.iterator(); iter.hasNext();) {
-        caw.write(" ");
-        caw.write(iter.next().fToken);
+      if (!config.fHashTerms) { // otherwise indexed in sHashTermField
+        for (Iterator<NGram.Entry> iter = result.w.fOutputEntries.iterator(); iter.hasNext();) {
+          caw.write(" ");
+          caw.write(iter.next().fToken);
+        }
       }
 
       result.r = new CharArrayReader(caw.toCharArray());
@@ -189,6 +239,10 @@ public class NGram {
     return convertToQuery(w);
   }
 
+  /**
+   * Text form of the ngram query, only parsable for up to
+   * BooleanQuery.getMaxClauseCount() ngrams.  Searches use convertToNGramQuery.
+   */
   static public String convertToQuery(NGram.Winnowing w) {
     // TODO: add ngram counts to prune results?
     // convert to query for ngrams
@@ -201,15 +255,70 @@ public class NGram {
       // debugging
       //System.out.println(e.fHash + " = \"" + e.fChars + "\"");
     }
-    // make sure engine can handle this query
-    count += 1000;
-    synchronized (sLock) {
-      if (BooleanQuery.getMaxClauseCount() < count)
-        BooleanQuery.setMaxClauseCount(count);
-    }
     return sb.toString();
   }
 
+  /**
+   * @return fixed width (11 char) term for an ngram token in sHashTermField
+   */
+  static public String getHashTerm(String token) {
+    return NumericUtils.longToPrefixCoded(Fingerprints.getTokenHash(token));
+  }
+
+  /**
+   * @return stream of the hash terms of the ngrams in w, for sHashTermField
+   */
+  static public TokenStream createHashTermStream(final NGram.Winnowing w) {
+    return new TokenStream() {
+      Iterator<NGram.Entry> fIter = w.fOutputEntries.iterator();
+      TermAttribute fTermAtt = addAttribute(TermAttribute.class);
+      public boolean incrementToken() {
+        if (!fIter.hasNext())
+          return false;
+        clearAttributes();
+        fTermAtt.setTermBuffer(getHashTerm(fIter.next().fToken));
+        return true;
+      }
+    };
+  }
+
+  /**
+   * @return one term per ngram of w, as hash terms in sHashTermField or as
+   *         the (analyzed) token text in contents
+   */
+  static public Term[] getNGramTerms(NGram.Winnowing w, boolean hashTerms) {
+    Term[] terms = new Term[w.fOutputEntries.size()];
+    int i = 0;
+    for (Iterator<NGram.Entry> iter = w.fOutputEntries.iterator(); iter.hasNext(); i++) {
+      String token = iter.next().fToken;
+      // StandardAnalyzer keeps a token of letters and digits whole, only lowercasing it
+      terms[i] = (hashTerms ? new Term(sHashTermField, getHashTerm(token)) : new Term("contents", token.toLowerCase()));
+    }
+    return terms;
+  }
+
+  /**
+   * Query for the ngrams of w built without QueryParser.  Up to
+   * sMaxNGramClauses ngrams this is one optional clause each (as parsing
+   * convertToQuery gives), larger inputs are a constant score NGramCountFilter
+   * whose hits are ranked with an NGramCountCollector.
+   * @return the query, or null if there are no ngrams
+   */
+  static public Query convertToNGramQuery(NGram.Winnowing w, boolean hashTerms) {
+    Term[] terms = getNGramTerms(w, hashTerms);
+    if (terms.length == 0)
+      return null;
+    if (terms.length == 1)
+      return new TermQuery(terms[0]);
+    if (terms.length > sMaxNGramClauses)
+      return new ConstantScoreQuery(new NGramCountFilter(terms));
+    BooleanQuery q = new BooleanQuery();
+    for (int i = 0; i < terms.length; i++) {
+      q.add(new TermQuery(terms[i]), BooleanClause.Occur.SHOULD);
+    }
+    return q;
+  }
+
   // ---------
   //  classes
   // ---------
@@ -237,10 +346,184 @@ public class NGram {
     }
   }
 
+  /**
+   * Open addressing table from token hash (Fingerprints.getTokenHash) to the
+   * entries of a winnowing with that token, chained in entry order.  Only
+   * hashes are compared, which are wide enough that tokens do not collide.
+   */
+  static public class TokenTable {
+    final long[] fKeys;
+    final int[] fFirst; // first entry of the slot's token, -1 for an empty slot
+    final int[] fNext; // next entry with the same token, -1 at the end
+    final int fMask;
+
+    TokenTable(long[] hashes) {
+      int capacity = 4;
+      while (capacity < hashes.length * 2) capacity <<= 1;
+      fKeys = new long[capacity];
+      fFirst = new int[capacity];
+      Arrays.fill(fFirst, -1);
+      fNext = new int[hashes.length];
+      fMask = capacity - 1;
+      int[] last = new int[capacity];
+      for (int i = 0; i < hashes.length; i++) {
+        int slot = getSlot(hashes[i]);
+        fNext[i] = -1;
+        if (fFirst[slot] < 0) { fKeys[slot] = hashes[i]; fFirst[slot] = i; }
+        else fNext[last[slot]] = i;
+        last[slot] = i;
+      }
+    }
+
+    /** @return slot of hash, or the empty slot where it would go */
+    private int getSlot(long hash) {
+      int slot = (int) (hash ^ (hash >>> 32)) & fMask;
+      while (fFirst[slot] >= 0 && fKeys[slot] != hash) slot = (slot + 1) & fMask;
+      return slot;
+    }
+
+    /** @return first entry with token hash, or -1 */
+    public int first(long hash) {
+      return fFirst[getSlot(hash)];
+    }
+
+    /** @return next entry after entry with the same token, or -1 */
+    public int next(int entry) {
+      return fNext[entry];
+    }
+  }
+
+  /**
+   * Compact form of a document's winnowed entries: token hash and location in
+   * the original, sorted by hash.  Stored in the index so highlighting a hit
+   * does not need to normalize and winnow its text again.  Only the first
+   * entry for each token is kept, as getMatchLocations only uses that one.
+   */
+  static public class Fingerprints {
+    static final int sVersion = 1;
+
+    public long[] fHashes;
+    public int[] fStarts;
+    public int[] fEnds;
+    // winnowing settings the entries were picked with
+    int fNGramSize;
+    int fWindowSize;
+    boolean fRollingHash;
+
+    /**
+     * @return fingerprints of the entries winnowed by w
+     */
+    static public Fingerprints create(Winnowing w) {
+      Vector<NGram.Entry> entries = new Vector<NGram.Entry>();
+      HashSet<String> seen = new HashSet<String>();
+      for (Iterator<NGram.Entry> iter = w.fOutputEntries.iterator(); iter.hasNext();) {
+        NGram.Entry e = iter.next();
+        if (seen.add(e.fToken)) entries.add(e);
+      }
+      final long[] hashes = new long[entries.size()];
+      Integer[] order = new Integer[hashes.length];
+      for (int i = 0; i < hashes.length; i++) { hashes[i] = getTokenHash(entries.get(i).fToken); order[i] = i; }
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) { return Long.compare(hashes[a], hashes[b]); }
+      });
+      Fingerprints f = new Fingerprints();
+      f.fNGramSize = w.fNGramSize;
+      f.fWindowSize = w.fWindowSize;
+      f.fRollingHash = w.fRollingHash;
+      f.fHashes = new long[hashes.length];
+      f.fStarts = new int[hashes.length];
+      f.fEnds = new int[hashes.length];
+      for (int i = 0; i < hashes.length; i++) {
+        NGram.Entry e = entries.get(order[i]);
+        f.fHashes[i] = hashes[order[i]];
+        f.fStarts[i] = e.fLocationStartInOriginal;
+        f.fEnds[i] = e.fLocationEndInOriginal;
+      }
+      return f;
+    }
+
+    /**
+     * @return index of the entry for token, or -1
+     */
+    public int find(String token) {
+      int i = Arrays.binarySearch(fHashes, getTokenHash(token));
+      return (i >= 0 ? i : -1);
+    }
+
+    /** 64 bit FNV-1a, wide enough that distinct tokens of one document do not collide */
+    static public long getTokenHash(String token) {
+      long h = 0xcbf29ce484222325L;
+      for (int i = 0; i < token.length(); i++) {
+        h ^= token.charAt(i);
+        h *= 0x100000001b3L;
+      }
+      return h;
+    }
+
+    /**
+     * @return binary form for a stored field, records the winnowing settings
+     */
+    public byte[] encode() {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream(16 + fHashes.length * 16);
+      DataOutputStream out = new DataOutputStream(bout);
+      try {
+        out.writeByte(sVersion);
+        out.writeShort(fNGramSize);
+        out.writeShort(fWindowSize);
+        out.writeBoolean(fRollingHash);
+        out.writeInt(fHashes.length);
+        for (int i = 0; i < fHashes.length; i++) {
+          out.writeLong(fHashes[i]);
+          out.writeInt(fStarts[i]);
+          out.writeInt(fEnds[i]);
+        }
+        out.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return bout.toByteArray();
+    }
+
+    /**
+     * @return fingerprints stored by encode(), or null if there are none or
+     *         they were made with different winnowing settings
+     */
+    static public Fingerprints decode(byte[] b) {
+      return decode(b, EngineConfig.getDefault());
+    }
+
+    static public Fingerprints decode(byte[] b, EngineConfig config) {
+      if (b == null)
+        return null;
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+      try {
+        if (in.readByte() != sVersion || in.readShort() != config.fNGramSize || in.readShort() != config.fWindowSize || in.readBoolean() != config.fRollingHash)
+          return null;
+        int size = in.readInt();
+        Fingerprints f = new Fingerprints();
+        f.fNGramSize = config.fNGramSize;
+        f.fWindowSize = config.fWindowSize;
+        f.fRollingHash = config.fRollingHash;
+        f.fHashes = new long[size];
+        f.fStarts = new int[size];
+        f.fEnds = new int[size];
+        for (int i = 0; i < size; i++) {
+          f.fHashes[i] = in.readLong();
+          f.fStarts[i] = in.readInt();
+          f.fEnds[i] = in.readInt();
+        }
+        return f;
+      } catch (IOException e) {
+        return null; // truncated
+      }
+    }
+  }
+
   /**
    * Winnowing class creates NGrams from input text
    */
   static public class Winnowing {
+    final EngineConfig fConfig;
     int fWindowSize; // window size
     int fNGramSize; // the ngram size
     int[] fWindowOfHashes; // circular buffer implementing window of size w
@@ -249,26 +532,61 @@ public class NGram {
     char[] fWindowOfChars; // rolling chars in the window
     int[] fWindowOfLocations; // aligned with fWindowOfChars, stores locations in original text
     int fNGramEndPoint; // start of rolling chars in ngram, points into
+    boolean fRollingHash; // use rolling hash (see sRollingHash)
+    int fRollingValue; // rolling hash of the last fNGramSize chars
+    int fRollingPower; // 31^fNGramSize, to remove the char leaving the ngram
+    int fHashCount; // number of hashes computed so far
+    int[] fMinQueue; // hash numbers in the window with increasing hash values, circular
+    int fMinQueueHead;
+    int fMinQueueSize;
 
     NGramUtils.BaseReader fInput;
+    // normalized input read ahead in bulk from fInput
+    char[] fInputChars = new char[1024];
+    int[] fInputLocations = new int[1024];
+    int fInputPosition;
+    int fInputLength;
 
     public Vector<NGram.Entry> fOutputEntries;
+    // token hashes of fOutputEntries and their table, made when first asked for
+    long[] fTokenHashes;
+    TokenTable fTokenTable;
+    // word and sentence boundaries of the winnowed text, made when first asked for
+    TokenizedText fTokenizedText;
     StringBuffer fNormalizedOutputBuffer = null;
     public String fNormalizedOutput;
 
     public Winnowing() {
-      this(sWindowSize, sNGramSize);
+      this(EngineConfig.getDefault());
     }
 
     public Winnowing(boolean getNormalizedOutput) {
-      this(sWindowSize, sNGramSize);
+      this(EngineConfig.getDefault(), getNormalizedOutput);
+    }
+
+    public Winnowing(EngineConfig config, boolean getNormalizedOutput) {
+      this(config);
       if (getNormalizedOutput)
         fNormalizedOutputBuffer = new StringBuffer();
     }
 
     protected Winnowing(int windowSize, int ngramSize) {
-      fWindowSize = windowSize;
-      fNGramSize = ngramSize;
+      this(windowSize, ngramSize, sRollingHash);
+    }
+
+    protected Winnowing(int windowSize, int ngramSize, boolean rollingHash) {
+      this(EngineConfig.getDefault().with(ngramSize, windowSize, rollingHash));
+    }
+
+    public Winnowing(EngineConfig config) {
+      fConfig = config;
+      fWindowSize = config.fWindowSize;
+      fNGramSize = config.fNGramSize;
+      fRollingHash = config.fRollingHash;
+      fRollingPower = 1;
+      for (int i = 0; i < fNGramSize; i++)
+        fRollingPower *= 31;
+      fMinQueue = new int[fWindowSize];
       fWindowOfHashes = new int[fWindowSize];
       fWindowRightPoint = -1;
       // keep window size of ngramsize strings all overlapping...
@@ -277,6 +595,36 @@ public class NGram {
       fNGramEndPoint = 0;
     }
 
+    /**
+     * @return token hash of each output entry, do not modify
+     */
+    public synchronized long[] getTokenHashes() {
+      if (fTokenHashes == null) {
+        long[] hashes = new long[fOutputEntries.size()];
+        for (int i = 0; i < hashes.length; i++) hashes[i] = Fingerprints.getTokenHash(fOutputEntries.get(i).fToken);
+        fTokenHashes = hashes;
+      }
+      return fTokenHashes;
+    }
+
+    /**
+     * @return table of the output entries by token, made once per winnowing
+     *         and shared by the hits it is matched against
+     */
+    public synchronized TokenTable getTokenTable() {
+      if (fTokenTable == null) fTokenTable = new TokenTable(getTokenHashes());
+      return fTokenTable;
+    }
+
+    /**
+     * @param data the text that was winnowed
+     * @return word and sentence boundaries of data, made once per winnowing
+     */
+    public synchronized TokenizedText getTokenizedText(String data) {
+      if (fTokenizedText == null || fTokenizedText.fData != data) fTokenizedText = new TokenizedText(data);
+      return fTokenizedText;
+    }
+
     public void winnow(String data) {
       winnow(new StringReader(data));
     }
@@ -286,10 +634,17 @@ public class NGram {
         fWindowLocationInStream = -1;
         fWindowRightPoint = -1;
         fNGramEndPoint = 0;
+        fInputPosition = fInputLength = 0;
+        fRollingValue = 0;
+        fHashCount = 0;
+        fMinQueueHead = fMinQueueSize = 0;
         // debugging
         //fInput = new NGram.NGramReader(data);
-        fInput = new NGramUtils.MFReader(new NGramUtils.NGramReader(new NGramUtils.ReaderToLocationReader(data)), sBaseDir + sSubwordMappingsFile);
+        fInput = new NGramUtils.MFReader(new NGramUtils.NGramReader(new NGramUtils.ReaderToLocationReader(data), fConfig.fKeepWhitespace), fConfig.getSubwordMappingsPath());
         fOutputEntries = new Vector<NGram.Entry>();
+        fTokenHashes = null;
+        fTokenTable = null;
+        fTokenizedText = null;
         // read in first set of chars for ngram
         for (int i = 0; i < fNGramSize - 1; i++) {
           if (!getChar())
@@ -320,13 +675,10 @@ public class NGram {
             return;
           if (min == fWindowRightPoint) {
             // The previous minimum is no longer in this
-            // window. Scan h leftward starting from r
-            // for the rightmost minimal hash. Note min
-            // starts with the index of the rightmost
-            // hash.
-            for (int i = (fWindowRightPoint - 1 + fWindowSize) % fWindowSize; i != fWindowRightPoint; i = (i - 1 + fWindowSize) % fWindowSize)
-              if (fWindowOfHashes[i] < fWindowOfHashes[min])
-                min = i;
+            // window. The front of the min queue is the
+            // rightmost minimal hash in the window (the
+            // same one a leftward scan from r would find).
+            min = fMinQueue[fMinQueueHead] % fWindowSize;
             record(min);
           } else {
             // Otherwise, the previous minimum is still in
@@ -353,29 +705,52 @@ public class NGram {
       if (!getChar())
         return false;
       fWindowRightPoint = (fWindowRightPoint + 1) % fWindowSize;
-      fWindowOfHashes[fWindowRightPoint] = getHash((fNGramEndPoint - fNGramSize + fWindowOfChars.length) % fWindowOfChars.length);
+      int hash = getHash((fNGramEndPoint - fNGramSize + fWindowOfChars.length) % fWindowOfChars.length);
+      fWindowOfHashes[fWindowRightPoint] = hash;
+      // monotone queue: drop the hash that left the window from the front, and
+      // larger or equal hashes from the back (keeps the rightmost of equal minima)
+      if (fMinQueueSize > 0 && fMinQueue[fMinQueueHead] <= fHashCount - fWindowSize) {
+        fMinQueueHead = (fMinQueueHead + 1) % fWindowSize;
+        fMinQueueSize--;
+      }
+      while (fMinQueueSize > 0 && fWindowOfHashes[fMinQueue[(fMinQueueHead + fMinQueueSize - 1) % fWindowSize] % fWindowSize] >= hash)
+        fMinQueueSize--;
+      fMinQueue[(fMinQueueHead + fMinQueueSize) % fWindowSize] = fHashCount;
+      fMinQueueSize++;
+      fHashCount++;
       // TODO: fix assertions
       //assert ((fWindowLocationInStream - fWindowSize) % fWindowOfHashes.length == fWindowRightPoint);
       return true;
     }
 
     boolean getChar() {
-      try {
-        NGramUtils.LocatedChar lc = fInput.readLocated();
-        if (lc.c == -1)
-          return false;
-        fWindowOfChars[fNGramEndPoint] = (char) lc.c;
-        fWindowOfLocations[fNGramEndPoint] = lc.originalLocation;
-        fNGramEndPoint = (fNGramEndPoint + 1) % fWindowOfChars.length;
-        fWindowLocationInStream++;
-        // TODO: fix assertions
-        //assert (fWindowLocationInStream % fWindowOfChars.length == fNGramEndPoint);
+      if (fInputPosition >= fInputLength) {
+        try {
+          int n = fInput.readLocated(fInputChars, fInputLocations, 0, fInputChars.length);
+          if (n <= 0)
+            return false;
+          fInputPosition = 0;
+          fInputLength = n;
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
         if (fNormalizedOutputBuffer != null) {
-          fNormalizedOutputBuffer.append((char) lc.c);
+          fNormalizedOutputBuffer.append(fInputChars, 0, fInputLength);
         }
-      } catch (IOException e) {
-        throw new RuntimeException(e);
       }
+      char c = fInputChars[fInputPosition];
+      fWindowOfChars[fNGramEndPoint] = c;
+      fWindowOfLocations[fNGramEndPoint] = fInputLocations[fInputPosition];
+      fInputPosition++;
+      fWindowLocationInStream++;
+      if (fRollingHash) {
+        fRollingValue = 31 * fRollingValue + c;
+        if (fWindowLocationInStream >= fNGramSize)
+          fRollingValue -= fRollingPower * fWindowOfChars[(fNGramEndPoint - fNGramSize + fWindowOfChars.length) % fWindowOfChars.length];
+      }
+      fNGramEndPoint = (fNGramEndPoint + 1) % fWindowOfChars.length;
+      // TODO: fix assertions
+      //assert (fWindowLocationInStream % fWindowOfChars.length == fNGramEndPoint);
       return true;
     }
 
@@ -385,6 +760,8 @@ public class NGram {
       // positionOfNGram, fNGramSize) + " = \"" +
       // NGram.getNGramString(fWindowOfChars, positionOfNGram, fNGramSize) +
       // "\"");
+      if (fRollingHash)
+        return NGramUtils.finishRollingHash(fRollingValue);
       return NGramUtils.getHash(fWindowOfChars, positionOfNGram, fNGramSize);
     }
 
@@ -404,7 +781,7 @@ public class NGram {
        * / * debugging if (e.fHash != NGram.getHash(e.fChars.toCharArray(), 0,
        * sNGramSize)) System.out.println("error ngram=\"" + e.fChars + "\""); //
        */
-      assert (e.fHash == NGramUtils.getHash(e.fChars.toCharArray(), 0, fNGramSize));
+      assert (e.fHash == (fRollingHash ? NGramUtils.getRollingHash(e.fChars.toCharArray(), 0, fNGramSize) : NGramUtils.getHash(e.fChars.toCharArray(), 0, fNGramSize)));
     }
 
   } // Winnowing
@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+package janusengine;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Collects the hits of a search run with an NGramCountFilter (in the query or
+ * as its filter).  Hits sharing fewer than a minimum number of query ngrams are
+ * dropped as they are collected, before any stored fields are loaded, and only
+ * the best maxHits are kept.  Hits are ranked by their shared ngram count, or
+ * by score (as TopScoreDocCollector does), ties in index order.
+ */
+public class NGramCountCollector extends Collector {
+
+  final NGramCountFilter fFilter;
+  final int fMinCount;
+  final int fMaxHits;
+  final boolean fByScore;
+  IndexReader fReader;
+  int[] fCounts; // of fReader, fetched once the filter has run on it
+  int fDocBase;
+  Scorer fScorer;
+  int fDropped = 0;
+
+  // worst kept hit on top
+  final PriorityQueue<ScoreDoc> fHits;
+  static final Comparator<ScoreDoc> sRank = new Comparator<ScoreDoc>() {
+    public int compare(ScoreDoc a, ScoreDoc b) {
+      if (a.score != b.score) return (a.score > b.score ? -1 : 1);
+      return a.doc - b.doc;
+    }
+  };
+
+  /**
+   * @param minCount least number of shared query ngrams for a hit to be kept
+   * @param maxHits number of best hits to keep
+   * @param byScore rank by query score rather than shared ngram count
+   */
+  public NGramCountCollector(NGramCountFilter filter, int minCount, int maxHits, boolean byScore) {
+    fFilter = filter;
+    fMinCount = minCount;
+    fMaxHits = maxHits;
+    fByScore = byScore;
+    fHits = new PriorityQueue<ScoreDoc>(16, Collections.reverseOrder(sRank));
+  }
+
+  public void setScorer(Scorer scorer) {
+    fScorer = scorer;
+  }
+
+  public void setNextReader(IndexReader reader, int docBase) {
+    fReader = reader;
+    fCounts = null; // the filter runs on reader after this is called
+    fDocBase = docBase;
+  }
+
+  public void collect(int doc) throws IOException {
+    if (fCounts == null) fCounts = fFilter.getCounts(fReader);
+    int count = (fCounts != null ? fCounts[doc] : 0);
+    if (count < fMinCount) { fDropped++; return; }
+    ScoreDoc hit = new ScoreDoc(fDocBase + doc, fByScore ? fScorer.score() : count);
+    if (fHits.size() < fMaxHits) {
+      fHits.add(hit);
+    } else if (sRank.compare(hit, fHits.peek()) < 0) {
+      fHits.poll();
+      fHits.add(hit);
+    }
+  }
+
+  public boolean acceptsDocsOutOfOrder() {
+    return false; // same scorers, so the same scores, as TopScoreDocCollector.create(n, true)
+  }
+
+  /** @return number of matching documents dropped for sharing too few ngrams */
+  public int getDropped() {
+    return fDropped;
+  }
+
+  /**
+   * @return kept hits, best first, score is the shared ngram count unless ranking by score
+   */
+  public ScoreDoc[] getHits() {
+    ScoreDoc[] hits = fHits.toArray(new ScoreDoc[fHits.size()]);
+    Arrays.sort(hits, sRank);
+    return hits;
+  }
+}
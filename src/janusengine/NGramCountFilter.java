@@ -0,0 +1,85 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+package janusengine;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Matches the documents sharing at least one ngram term with a query, without
+ * building a clause per ngram, and counts the distinct ngrams each document
+ * shares.  Used (through a ConstantScoreQuery) for large queries, with an
+ * NGramCountCollector ranking the hits by their counts.
+ */
+public class NGramCountFilter extends Filter {
+
+  private static final long serialVersionUID = 1L;
+
+  final Term[] fTerms; // distinct and sorted, so term lookups walk the dictionary in order
+  private final HashMap<IndexReader, int[]> fCounts = new HashMap<IndexReader, int[]>();
+
+  public NGramCountFilter(Term[] terms) {
+    LinkedHashSet<Term> distinct = new LinkedHashSet<Term>(Arrays.asList(terms));
+    fTerms = distinct.toArray(new Term[distinct.size()]);
+    Arrays.sort(fTerms);
+  }
+
+  public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+    int[] counts = new int[reader.maxDoc()];
+    OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+    TermDocs td = reader.termDocs();
+    try {
+      for (int i = 0; i < fTerms.length; i++) {
+        td.seek(fTerms[i]);
+        while (td.next()) {
+          int doc = td.doc();
+          counts[doc]++;
+          bits.fastSet(doc);
+        }
+      }
+    } finally {
+      td.close();
+    }
+    synchronized (fCounts) {
+      fCounts.put(reader, counts);
+    }
+    return bits;
+  }
+
+  /**
+   * @return number of query ngrams shared by doc of reader, 0 if the filter
+   *         has not been run on reader
+   */
+  public int getCount(IndexReader reader, int doc) {
+    int[] counts;
+    synchronized (fCounts) {
+      counts = fCounts.get(reader);
+    }
+    return (counts != null ? counts[doc] : 0);
+  }
+
+  /** @return counts for all docs of reader, or null if the filter has not been run on it */
+  int[] getCounts(IndexReader reader) {
+    synchronized (fCounts) {
+      return fCounts.get(reader);
+    }
+  }
+
+  public int getTermCount() {
+    return fTerms.length;
+  }
+}
@@ -14,8 +14,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.Vector;
 
 public class NGramUtils {
 
@@ -112,6 +115,32 @@ public class NGramUtils {
     return hash;
   }
 
+  /**
+   * Polynomial hash (base 31, mod 2^32) that NGram.Winnowing can update in
+   * O(1) per char, see NGram.sRollingHash.
+   */
+  static public final int getRollingHash(char[] chars, int offset, int length) {
+    int h = 0;
+    for (; length > 0; length--) {
+      h = 31 * h + chars[offset];
+      offset = (offset + 1) % chars.length;
+    }
+    return finishRollingHash(h);
+  }
+
+  /**
+   * Mix the bits of a rolling hash value so minima are well spread, and
+   * return it positive like getHash().
+   */
+  static public final int finishRollingHash(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h & 0x7FFFFFFF;
+  }
+
   static public String cleanAndTrimString(String s) {
     return cleanString(s.trim());
   }
@@ -207,6 +236,13 @@ public class NGramUtils {
   static public interface LocationReader {
     public LocatedChar readLocated() throws IOException;
 
+    /**
+     * Bulk form of readLocated(), fills chars and the aligned original
+     * locations without creating a LocatedChar per char.
+     * @return number of chars read, or -1 at the end of the input
+     */
+    public int readLocated(char[] chars, int[] locations, int offset, int length) throws IOException;
+
     public void close() throws IOException;
 
     public void reset() throws IOException;
@@ -227,6 +263,15 @@ public class NGramUtils {
       return new LocatedChar(fBase.read(), fLocationInOriginal++);
     }
 
+    public int readLocated(char[] chars, int[] locations, int offset, int length) throws IOException {
+      int n = fBase.read(chars, offset, length);
+      if (n <= 0)
+        return -1;
+      for (int k = 0; k < n; k++)
+        locations[offset + k] = fLocationInOriginal++;
+      return n;
+    }
+
     public void close() throws IOException {
       fBase.close();
       fBase = null;
@@ -243,6 +288,7 @@ public class NGramUtils {
    */
   static public class BaseReader extends Reader implements LocationReader {
     private LocationReader fBase;
+    private int[] fReadLocations; // scratch space for read(char[],int,int)
 
     BaseReader(LocationReader base) {
       fBase = base;
@@ -252,22 +298,20 @@ public class NGramUtils {
       return fBase.readLocated();
     }
 
+    public int readLocated(char[] chars, int[] locations, int offset, int length) throws IOException {
+      return fBase.readLocated(chars, locations, offset, length);
+    }
+
     public int read() throws IOException {
       return readLocated().c;
     }
 
     public int read(char[] chars, int offset, int length) throws IOException {
-      int i = length;
-      for (; i > 0; i--) {
-        int c = read();
-        if (c == -1) {
-          if (length == i)
-            return -1;
-          return length - i;
-        }
-        chars[offset++] = (char) c;
-      }
-      return length;
+      if (length <= 0)
+        return 0;
+      if (fReadLocations == null || fReadLocations.length < offset + length)
+        fReadLocations = new int[Math.max(offset + length, 1024)];
+      return readLocated(chars, fReadLocations, offset, length);
     }
 
     public void close() throws IOException {
@@ -280,63 +324,98 @@ public class NGramUtils {
     }
   } // BaseReader
 
+  /** default for EngineConfig.getDefault() */
   static public boolean sKeepWhitespace = true;
-  
+
   /**
    * Reads in from a supplied Reader object, then folds cases, prunes out
    * special characters, collapses whitespace, etc.
    */
   static public class NGramReader extends BaseReader {
     boolean fLastWasWhitespace = false;
-    LinkedList<LocatedChar> fWaitingLC = new LinkedList<LocatedChar>();
+    final boolean fKeepWhitespace;
+    // unprocessed input from base in fWaiting/fWaitingLocations[fWaitingStart..fWaitingEnd)
+    char[] fWaiting = new char[1024];
+    int[] fWaitingLocations = new int[1024];
+    int fWaitingStart = 0;
+    int fWaitingEnd = 0;
+    boolean fMoreInput = true;
+    // used by the single char readLocated()
+    char[] fOne = new char[1];
+    int[] fOneLocation = new int[1];
 
     NGramReader(LocationReader base) {
+      this(base, sKeepWhitespace);
+    }
+
+    NGramReader(LocationReader base, boolean keepWhitespace) {
       super(base);
+      fKeepWhitespace = keepWhitespace;
     }
 
     public int read() throws IOException {
       return readLocated().c;
     }
 
+    /** keep at least 4 chars waiting (so "<br>" can be seen) until the input runs out */
     private void readBlock() throws IOException {
-      for (int i = 0; i < 30; i++) {
-        LocatedChar lc = super.readLocated();
-        fWaitingLC.add(lc);
-        if (lc.c == -1)
-          break;
+      while (fMoreInput && fWaitingEnd - fWaitingStart < 4) {
+        if (fWaitingEnd >= fWaiting.length) {
+          System.arraycopy(fWaiting, fWaitingStart, fWaiting, 0, fWaitingEnd - fWaitingStart);
+          System.arraycopy(fWaitingLocations, fWaitingStart, fWaitingLocations, 0, fWaitingEnd - fWaitingStart);
+          fWaitingEnd -= fWaitingStart;
+          fWaitingStart = 0;
+        }
+        int n = super.readLocated(fWaiting, fWaitingLocations, fWaitingEnd, fWaiting.length - fWaitingEnd);
+        if (n < 0)
+          fMoreInput = false;
+        else
+          fWaitingEnd += n;
       }
     }
 
     public LocatedChar readLocated() throws IOException {
+      if (readLocated(fOne, fOneLocation, 0, 1) < 0)
+        return new LocatedChar(-1, -1);
+      return new LocatedChar(fOne[0], fOneLocation[0]);
+    }
+
+    public int readLocated(char[] chars, int[] locations, int offset, int length) throws IOException {
       // TODO: return non a-z characters?
-      for (;;) {
-        if (fWaitingLC.size() < 30)
+      int n = 0;
+      while (n < length) {
+        if (fWaitingEnd - fWaitingStart < 4)
           readBlock();
-        LocatedChar lc = fWaitingLC.poll();
-        if (lc.c == -1)
-          return lc;
+        if (fWaitingStart >= fWaitingEnd)
+          break;
+        char c = fWaiting[fWaitingStart];
+        int location = fWaitingLocations[fWaitingStart];
+        fWaitingStart++;
         // keep this aligned with isWhitespace(char) method below.
-        if (lc.c >= 'A' && lc.c <= 'Z')
-          lc.c = lc.c - 'A' + 'a';
-        if (lc.c >= 'a' && lc.c <= 'z') {
+        if (c >= 'A' && c <= 'Z')
+          c = (char) (c - 'A' + 'a');
+        if (c >= 'a' && c <= 'z') {
           if (sDebug)
-            System.out.println("read " + (char) lc.c);
+            System.out.println("read " + c);
           fLastWasWhitespace = false;
-          return lc;
+          chars[offset + n] = c;
+          locations[offset + n] = location;
+          n++;
+          continue;
         }
-        if (lc.c == '<') {
-          if (fWaitingLC.size() >= 3 && fWaitingLC.get(0).c == 'b' && fWaitingLC.get(1).c == 'r' && fWaitingLC.get(2).c == '>') {
-            fWaitingLC.poll();
-            fWaitingLC.poll();
-            fWaitingLC.poll();
+        if (c == '<') {
+          if (fWaitingEnd - fWaitingStart >= 3 && fWaiting[fWaitingStart] == 'b' && fWaiting[fWaitingStart + 1] == 'r' && fWaiting[fWaitingStart + 2] == '>') {
+            fWaitingStart += 3;
           }
         }
-        if (!fLastWasWhitespace && sKeepWhitespace) {
+        if (!fLastWasWhitespace && fKeepWhitespace) {
           fLastWasWhitespace = true;
-          lc.c = ' ';
-          return lc;
+          chars[offset + n] = ' ';
+          locations[offset + n] = location;
+          n++;
         }
       }
+      return (n > 0 ? n : -1);
     }
 
     static public boolean isWhitespace(char c) {
@@ -350,46 +429,116 @@ public class NGramUtils {
     public void reset() throws IOException {
       super.reset();
       fLastWasWhitespace = false;
-      fWaitingLC.clear();
+      fWaitingStart = fWaitingEnd = 0;
+      fMoreInput = true;
     }
 
   } // NGramReader
 
   /**
-   * Does the word/subword mapping used in the Manipulus Florum.
+   * Compiled word/subword mapping table.  Immutable once built, so one instance
+   * is shared by every MFReader reading the same mappings file.
    */
-  // TODO: can we make this mapping faster
-  // TODO: move this somewhere else?
-  static public class MFReader extends BaseReader {
-    String fCurrent = "";
-    LinkedList<LocatedChar> fCurrentLC = new LinkedList<LocatedChar>();
-    boolean fMoreInput = true;
-    int fMaxMapping = 1;
-    HashMap<String, String> fMap = new HashMap<String, String>();
+  static public class SubwordMappings {
+    final HashMap<String, String> fMap;
+    final int fMaxMapping;
+
+    // char trie over the mapping keys, children of a node are stored together
+    // in fEdgeChar/fEdgeTarget starting at fFirstEdge[node]
+    final int[] fFirstEdge;
+    final int[] fEdgeCount;
+    final char[] fEdgeChar;
+    final int[] fEdgeTarget;
+    final int[] fRule; // rule ending at node or -1
+    final int[] fRuleLength;
+    final char[][] fRuleReplacement;
+
+    SubwordMappings(HashMap<String, String> map) {
+      int max = 1;
+      for (Iterator<String> iter = map.keySet().iterator(); iter.hasNext();)
+        max = Math.max(max, iter.next().length());
+      fMap = map;
+      fMaxMapping = max;
+
+      // build the trie with sorted maps, then flatten it breadth first
+      Vector<TreeMap<Character, Integer>> children = new Vector<TreeMap<Character, Integer>>();
+      Vector<Integer> rules = new Vector<Integer>();
+      children.add(new TreeMap<Character, Integer>());
+      rules.add(-1);
+      fRuleLength = new int[map.size()];
+      fRuleReplacement = new char[map.size()][];
+      int r = 0;
+      for (Iterator<String> iter = map.keySet().iterator(); iter.hasNext(); r++) {
+        String from = iter.next();
+        fRuleLength[r] = from.length();
+        fRuleReplacement[r] = map.get(from).toCharArray();
+        if (from.length() <= 0)
+          continue; // never matched
+        int node = 0;
+        for (int i = 0; i < from.length(); i++) {
+          Integer next = children.get(node).get(from.charAt(i));
+          if (next == null) {
+            next = children.size();
+            children.add(new TreeMap<Character, Integer>());
+            rules.add(-1);
+            children.get(node).put(from.charAt(i), next);
+          }
+          node = next;
+        }
+        rules.set(node, r);
+      }
+      int nodes = children.size();
+      fFirstEdge = new int[nodes];
+      fEdgeCount = new int[nodes];
+      fEdgeChar = new char[nodes - 1];
+      fEdgeTarget = new int[nodes - 1];
+      fRule = new int[nodes];
+      int edge = 0;
+      for (int node = 0; node < nodes; node++) {
+        fRule[node] = rules.get(node);
+        fFirstEdge[node] = edge;
+        fEdgeCount[node] = children.get(node).size();
+        for (Iterator<Map.Entry<Character, Integer>> iter = children.get(node).entrySet().iterator(); iter.hasNext(); edge++) {
+          Map.Entry<Character, Integer> e = iter.next();
+          fEdgeChar[edge] = e.getKey();
+          fEdgeTarget[edge] = e.getValue();
+        }
+      }
+    }
 
-    public MFReader(LocationReader base, String subwordMappingFile) {
-      super(base);
-      if (!new File(subwordMappingFile).exists()) {
-        System.err.println("Warning: " + subwordMappingFile + " does not exist.");
-        loadMappings(null);
-      } else {
-        try {
-          // TODO: Don't load every time... maybe memoize?
-          FileReader fr = new FileReader(subwordMappingFile);
-          loadMappings(fr);
-          fr.close();
-        } catch (IOException e) {
-          throw new RuntimeException(e);
+    /**
+     * @return the rule for the shortest mapping key that is a prefix of
+     *         chars[offset..offset+length), or -1 if there is none.
+     */
+    final int match(char[] chars, int offset, int length) {
+      int node = 0;
+      for (int i = 0; i < length; i++) {
+        char c = chars[offset + i];
+        int edge = fFirstEdge[node], end = edge + fEdgeCount[node];
+        for (; edge < end; edge++) {
+          if (fEdgeChar[edge] == c)
+            break;
         }
+        if (edge >= end)
+          return -1;
+        node = fEdgeTarget[edge];
+        if (fRule[node] >= 0)
+          return fRule[node];
       }
+      return -1;
     }
 
-    public MFReader(LocationReader base, Reader mappings) {
-      super(base);
-      loadMappings(mappings);
+    /**
+     * @return copy of these mappings with one more mapping added
+     */
+    public SubwordMappings with(String from, String to) {
+      HashMap<String, String> map = new HashMap<String, String>(fMap);
+      map.put(from, to);
+      return new SubwordMappings(map);
     }
 
-    private void loadMappings(Reader mappings) {
+    static public SubwordMappings read(Reader mappings) {
+      HashMap<String, String> map = new HashMap<String, String>();
       if (mappings != null) {
         // read in mappings
         try {
@@ -401,24 +550,94 @@ public class NGramUtils {
             int eq = line.indexOf('=');
             if (line.startsWith("#") || eq < 0)
               continue;
-            addMapping(line.substring(0, eq), line.substring(eq + 1));
+            map.put(line.substring(0, eq), line.substring(eq + 1));
           }
         } catch (IOException e) {
           throw new RuntimeException(e);
         }
       }
       // no default mappings right now...
+      return new SubwordMappings(map);
+    }
+
+    static private class CacheEntry {
+      long fLastModified;
+      long fLength;
+      SubwordMappings fMappings;
+    }
+
+    static private HashMap<String, CacheEntry> sCache = new HashMap<String, CacheEntry>();
+
+    /**
+     * @return mappings read from subwordMappingFile, only re-read when the file
+     *         changes
+     */
+    static public SubwordMappings get(String subwordMappingFile) {
+      File f = new File(subwordMappingFile);
+      String key = f.getAbsolutePath();
+      long lastModified = f.lastModified(); // 0 if it does not exist
+      long length = f.length();
+      synchronized (sCache) {
+        CacheEntry ce = sCache.get(key);
+        if (ce != null && ce.fLastModified == lastModified && ce.fLength == length)
+          return ce.fMappings;
+        ce = new CacheEntry();
+        ce.fLastModified = lastModified;
+        ce.fLength = length;
+        if (!f.exists()) {
+          System.err.println("Warning: " + subwordMappingFile + " does not exist.");
+          ce.fMappings = read(null);
+        } else {
+          try {
+            FileReader fr = new FileReader(f);
+            ce.fMappings = read(fr);
+            fr.close();
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        sCache.put(key, ce);
+        return ce.fMappings;
+      }
+    }
+  } // SubwordMappings
+
+  /**
+   * Does the word/subword mapping used in the Manipulus Florum.
+   */
+  // TODO: move this somewhere else?
+  static public class MFReader extends BaseReader {
+    // pending chars and their original locations live in fChars/fLocations[fStart..fEnd)
+    char[] fChars = new char[1024];
+    int[] fLocations = new int[1024];
+    int fStart = 0;
+    int fEnd = 0;
+    boolean fMoreInput = true;
+    SubwordMappings fMappings;
+    // returned from readLocated(), only valid until the next call
+    final LocatedChar fResult = new LocatedChar(-1, -1);
+
+    public MFReader(LocationReader base, String subwordMappingFile) {
+      this(base, SubwordMappings.get(subwordMappingFile));
+    }
+
+    public MFReader(LocationReader base, Reader mappings) {
+      this(base, SubwordMappings.read(mappings));
+    }
+
+    public MFReader(LocationReader base, SubwordMappings mappings) {
+      super(base);
+      fMappings = mappings;
     }
 
     public void reset() throws IOException {
       super.reset();
       fMoreInput = true;
-      fCurrent = "";
+      fStart = fEnd = 0;
     }
 
     public void addMapping(String from, String to) {
-      fMaxMapping = Math.max(fMaxMapping, from.length());
-      fMap.put(from, to);
+      fMappings = fMappings.with(from, to);
     }
 
     public int read() throws IOException {
@@ -426,52 +645,97 @@ public class NGramUtils {
     }
 
     public LocatedChar readLocated() throws IOException {
+      if (!mapFront()) {
+        fResult.c = -1;
+        fResult.originalLocation = -1;
+        return fResult;
+      }
+      // return first character
+      fResult.c = fChars[fStart];
+      fResult.originalLocation = fLocations[fStart];
+      fStart++;
+      return fResult;
+    }
+
+    public int readLocated(char[] chars, int[] locations, int offset, int length) throws IOException {
+      int n = 0;
+      for (; n < length && mapFront(); n++) {
+        chars[offset + n] = fChars[fStart];
+        locations[offset + n] = fLocations[fStart];
+        fStart++;
+      }
+      return (n > 0 ? n : -1);
+    }
+
+    /**
+     * Apply mappings to the front of the pending chars until none match.
+     * @return false at the end of the input, otherwise fChars[fStart] is the
+     *         next output char
+     */
+    private boolean mapFront() throws IOException {
+      SubwordMappings mappings = fMappings;
+      int maxMapping = mappings.fMaxMapping;
       // map multiple times as needed
       for (;;) {
         // input
-        for (;;) {
-          int length = fCurrent.length();
-          if (!fMoreInput && length <= 0)
-            return new LocatedChar(-1, -1);
-          if (!fMoreInput || length >= fMaxMapping)
-            break;
-          // add one character
-          if (fMoreInput && length < fMaxMapping) {
-            LocatedChar lc = super.readLocated();
-            if (lc.c < 0)
-              fMoreInput = false;
-            else {
-              fCurrent += (char) lc.c;
-              fCurrentLC.add(lc);
-            }
-          }
+        while (fMoreInput && fEnd - fStart < maxMapping) {
+          fill();
         }
-        // map
-        String currentOriginal = fCurrent;
-        int length = Math.min(fCurrent.length(), fMaxMapping);
-        for (int i = 0; i < length; i++) {
-          String x = fMap.get(fCurrent.subSequence(0, i + 1));
-          if (x == null)
-            continue;
-          // modify values
-          fCurrent = x + fCurrent.substring(i + 1);
-          LocatedChar lc = fCurrentLC.peek();
-          for (int k = 0; k <= i; k++) {
-            fCurrentLC.poll();
-          }
-          for (int k = x.length() - 1; k >= 0; k--) {
-            fCurrentLC.addFirst(new LocatedChar(x.charAt(k), lc.originalLocation));
-          }
-          break;
+        if (fEnd - fStart <= 0)
+          return false;
+        // map, replacement takes the location of the first char it replaces
+        int rule = mappings.match(fChars, fStart, Math.min(fEnd - fStart, maxMapping));
+        if (rule < 0)
+          return true;
+        replaceFront(mappings.fRuleLength[rule], mappings.fRuleReplacement[rule], fLocations[fStart]);
+      }
+    }
+
+    private void fill() throws IOException {
+      if (fEnd >= fChars.length) {
+        if (fStart > 0) {
+          System.arraycopy(fChars, fStart, fChars, 0, fEnd - fStart);
+          System.arraycopy(fLocations, fStart, fLocations, 0, fEnd - fStart);
+          fEnd -= fStart;
+          fStart = 0;
+        } else {
+          grow(fChars.length * 2);
         }
-        if (fCurrent == currentOriginal)
-          break;
       }
-      // return first character
-      fCurrent = fCurrent.substring(1);
-      LocatedChar lc = fCurrentLC.poll();
-      assert (fCurrent.length() == fCurrentLC.size());
-      return lc;
+      int n = super.readLocated(fChars, fLocations, fEnd, fChars.length - fEnd);
+      if (n < 0)
+        fMoreInput = false;
+      else
+        fEnd += n;
+    }
+
+    private void replaceFront(int removeLength, char[] replacement, int location) {
+      fStart += removeLength;
+      int length = replacement.length;
+      if (fStart < length) {
+        // shift pending chars right to make room in front
+        int pending = fEnd - fStart;
+        if (length + pending > fChars.length)
+          grow(Math.max(fChars.length * 2, length + pending));
+        System.arraycopy(fChars, fStart, fChars, length, pending);
+        System.arraycopy(fLocations, fStart, fLocations, length, pending);
+        fStart = length;
+        fEnd = length + pending;
+      }
+      fStart -= length;
+      for (int k = 0; k < length; k++) {
+        fChars[fStart + k] = replacement[k];
+        fLocations[fStart + k] = location;
+      }
+    }
+
+    private void grow(int size) {
+      char[] chars = new char[size];
+      int[] locations = new int[size];
+      System.arraycopy(fChars, 0, chars, 0, fEnd);
+      System.arraycopy(fLocations, 0, locations, 0, fEnd);
+      fChars = chars;
+      fLocations = locations;
     }
   } // MFReader
 
@@ -35,10 +35,8 @@ public class NGrammer {
 
   public void outputNGrams(String data, PrintStream out) {
 
-    NGram.sNGramSize = fNGramSize;
-    NGram.sWindowSize = fWindowSize;
-
-    NGram.Winnowing w = new NGram.Winnowing();
+    EngineConfig config = EngineConfig.getDefault().with(fBaseDir, fNGramSize, fWindowSize);
+    NGram.Winnowing w = new NGram.Winnowing(config);
     w.winnow(data);
     int length = w.fOutputEntries.size();
     for (int i = 0; i < length; i++) {
@@ -0,0 +1,126 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+package janusengine;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of rendered result pages, bounded by the number of
+ * chars held (keys and pages).  Entries belong to one index version and
+ * search settings, the whole cache is dropped when either changes.
+ */
+public class ResultCache {
+
+  static class Entry {
+    String fPage;
+    int fMatches;
+    Entry(String page, int matches) { fPage = page; fMatches = matches; }
+  }
+
+  private final LinkedHashMap<String, Entry> fEntries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+  private long fChars = 0;
+  private long fVersion = -1;
+  private String fSettings = "";
+
+  /**
+   * @return key for a request, all form data in key order
+   */
+  static String getKey(Hashtable<String, String> formData, boolean bOutputEmpty) {
+    String[] keys = formData.keySet().toArray(new String[formData.size()]);
+    Arrays.sort(keys);
+    StringBuffer sb = new StringBuffer();
+    sb.append(bOutputEmpty);
+    for (int i = 0; i < keys.length; i++) {
+      sb.append('\0').append(keys[i]).append('=').append(formData.get(keys[i]));
+    }
+    return sb.toString();
+  }
+
+  private void checkVersion(long version, String settings) {
+    if (fVersion != version || !fSettings.equals(settings)) {
+      fEntries.clear();
+      fChars = 0;
+      fVersion = version;
+      fSettings = settings;
+    }
+  }
+
+  /**
+   * @return page cached for key under this index version and settings, or null
+   */
+  synchronized Entry get(String key, long version, String settings) {
+    checkVersion(version, settings);
+    return fEntries.get(key);
+  }
+
+  synchronized void put(String key, long version, String settings, String page, int matches, long maxChars) {
+    checkVersion(version, settings);
+    Entry old = fEntries.put(key, new Entry(page, matches));
+    if (old != null) fChars -= key.length() + old.fPage.length();
+    fChars += key.length() + page.length();
+    for (Iterator<Map.Entry<String, Entry>> iter = fEntries.entrySet().iterator(); fChars > maxChars && iter.hasNext();) {
+      Map.Entry<String, Entry> e = iter.next(); // least recently used first
+      fChars -= e.getKey().length() + e.getValue().fPage.length();
+      iter.remove();
+    }
+  }
+
+  /**
+   * Passes everything written on to another writer while keeping a copy, up
+   * to a limit, so a page can be cached without holding back its output.
+   */
+  static class CapturingWriter extends Writer {
+    final Writer fOut;
+    final int fMaxChars;
+    StringBuffer fCapture = new StringBuffer(); // null once over fMaxChars
+    boolean fFailed = false;
+
+    CapturingWriter(Writer out, int maxChars) {
+      fOut = out;
+      fMaxChars = maxChars;
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      fOut.write(cbuf, off, len);
+      if (fCapture != null) {
+        if (fCapture.length() + len > fMaxChars) fCapture = null;
+        else fCapture.append(cbuf, off, len);
+      }
+    }
+
+    public void flush() throws IOException {
+      fOut.flush();
+    }
+
+    public void close() throws IOException {
+      fOut.close();
+    }
+
+    /** @return what was written, or null if it was too long or the page reported an error */
+    String getCaptured() {
+      return (fCapture != null && !fFailed ? fCapture.toString() : null);
+    }
+  }
+
+  /** PrintWriter over a CapturingWriter, so error reports can mark the page as not cacheable */
+  static class CapturingPrintWriter extends PrintWriter {
+    final CapturingWriter fCapture;
+
+    CapturingPrintWriter(CapturingWriter capture) {
+      super(capture);
+      fCapture = capture;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+package janusengine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Shares one reader per index directory between all queries.  Readers are
+ * reference counted: acquire() before searching and release() afterwards.  When
+ * the index on disk changes the reader is reopened and swapped in, and the old
+ * one is closed once the last query using it releases it.
+ */
+public class SearcherManager {
+
+  /** how often (ms) to check the index directory for a newer version */
+  static public long sReopenCheckMillis = 1000;
+
+  static private HashMap<String, SearcherManager> sManagers = new HashMap<String, SearcherManager>();
+
+  /**
+   * @return the shared manager for indexDir
+   */
+  static public SearcherManager get(String indexDir) throws IOException {
+    String key = new File(indexDir).getCanonicalPath();
+    synchronized (sManagers) {
+      SearcherManager m = sManagers.get(key);
+      if (m == null) {
+        m = new SearcherManager(key);
+        sManagers.put(key, m);
+      }
+      return m;
+    }
+  }
+
+  final String fIndexDir;
+  private IndexSearcher fCurrent; // holds one reference on its reader
+  private long fLastCheck;
+
+  SearcherManager(String indexDir) {
+    fIndexDir = indexDir;
+  }
+
+  /**
+   * @return a searcher whose reader stays open until release(searcher) is called
+   */
+  public synchronized IndexSearcher acquire() throws IOException {
+    if (fCurrent == null) {
+      fCurrent = new IndexSearcher(IndexReader.open(FSDirectory.open(new File(fIndexDir)), true));
+      fLastCheck = System.currentTimeMillis();
+    } else {
+      maybeReopen();
+    }
+    fCurrent.getIndexReader().incRef();
+    return fCurrent;
+  }
+
+  public void release(IndexSearcher searcher) throws IOException {
+    if (searcher != null)
+      searcher.getIndexReader().decRef();
+  }
+
+  /**
+   * @return version of the index currently being searched, changes when a
+   *         rebuilt or updated index is swapped in
+   */
+  public synchronized long getVersion() throws IOException {
+    IndexSearcher s = acquire();
+    try {
+      return s.getIndexReader().getVersion();
+    } finally {
+      release(s);
+    }
+  }
+
+  /** drop the manager's reference, the reader closes once all users release it */
+  public synchronized void close() throws IOException {
+    if (fCurrent != null) {
+      fCurrent.getIndexReader().decRef();
+      fCurrent = null;
+    }
+  }
+
+  private void maybeReopen() {
+    long now = System.currentTimeMillis();
+    if (now - fLastCheck < sReopenCheckMillis)
+      return;
+    fLastCheck = now;
+    IndexReader old = fCurrent.getIndexReader();
+    try {
+      if (old.isCurrent())
+        return;
+      // open fresh rather than reopen(), a rebuilt index can reuse segment names
+      fCurrent = new IndexSearcher(IndexReader.open(FSDirectory.open(new File(fIndexDir)), true));
+      old.decRef();
+    } catch (IOException e) {
+      // index is being rebuilt or removed, keep searching the old one for now
+      System.err.println("Warning: unable to reopen index " + fIndexDir + " (" + e.getMessage() + ").");
+    }
+  }
+}
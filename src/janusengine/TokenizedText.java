@@ -0,0 +1,179 @@
+/*
+ * (C) Copyright 2015 Andrew R J Kane <arkane (at) uwaterloo.ca>, All Rights Reserved.
+ *     Released for academic purposes only, All Other Rights Reserved.
+ *     This software is provided "as is" with no warranties, and the authors are not liable for any damages from its use.
+ * project: https://github.com/andrewrkane/janussearch
+ */
+
+package janusengine;
+
+import java.util.Arrays;
+
+/**
+ * Word and sentence boundaries of a text, found in one pass so that filling
+ * the gaps between matches looks words up instead of rescanning the text.
+ * Words are runs of ASCII letters, sentence marks are the chars that end a
+ * sentence for highlighting ("<>.!?\n\r").
+ */
+public class TokenizedText {
+
+  static final String sSentenceMarks = "<>.!?\n\r";
+
+  final String fData;
+  int fWords = 0;
+  // word i is fData[fStarts[i], fEnds[i])
+  int[] fStarts;
+  int[] fEnds;
+  long[] fHashes; // of the lower case word
+  // words with neither '<' nor '>' next to them, the only ones indexOfWord finds
+  boolean[] fWhole;
+  // previous and next word with the same hash, -1 if none
+  int[] fPrevSame;
+  int[] fNextSame;
+  int[] fMarks; // offsets of sentence marks
+  int fMarkCount = 0;
+
+  public TokenizedText(String data) {
+    fData = data;
+    int length = data.length();
+    int capacity = Math.max(16, length / 6);
+    fStarts = new int[capacity];
+    fEnds = new int[capacity];
+    fHashes = new long[capacity];
+    fMarks = new int[Math.max(16, length / 32)];
+    for (int i = 0; i < length;) {
+      char c = data.charAt(i);
+      if (!isLetter(c)) {
+        if (sSentenceMarks.indexOf(c) >= 0) {
+          if (fMarkCount == fMarks.length) fMarks = Arrays.copyOf(fMarks, fMarkCount * 2);
+          fMarks[fMarkCount++] = i;
+        }
+        i++;
+        continue;
+      }
+      int start = i;
+      long h = 0xcbf29ce484222325L;
+      for (; i < length && isLetter(c = data.charAt(i)); i++) {
+        h ^= (c <= 'Z' ? c - 'A' + 'a' : c);
+        h *= 0x100000001b3L;
+      }
+      if (fWords == fStarts.length) {
+        fStarts = Arrays.copyOf(fStarts, fWords * 2);
+        fEnds = Arrays.copyOf(fEnds, fWords * 2);
+        fHashes = Arrays.copyOf(fHashes, fWords * 2);
+      }
+      fStarts[fWords] = start;
+      fEnds[fWords] = i;
+      fHashes[fWords] = h;
+      fWords++;
+    }
+
+    // chain together the occurrences of each word, in text order
+    fWhole = new boolean[fWords];
+    fPrevSame = new int[fWords];
+    fNextSame = new int[fWords];
+    int mask = Integer.highestOneBit(Math.max(fWords, 8)) * 4 - 1;
+    int[] last = new int[mask + 1]; // word + 1 of the last occurrence so far
+    for (int i = 0; i < fWords; i++) {
+      int s = fStarts[i], e = fEnds[i];
+      fWhole[i] = (s <= 0 || !isAngle(data.charAt(s - 1))) && (e >= length || !isAngle(data.charAt(e)));
+      long h = fHashes[i];
+      int slot = (int) (h ^ (h >>> 32)) & mask;
+      while (last[slot] != 0 && fHashes[last[slot] - 1] != h) slot = (slot + 1) & mask;
+      fPrevSame[i] = last[slot] - 1;
+      fNextSame[i] = -1;
+      if (last[slot] != 0) fNextSame[last[slot] - 1] = i;
+      last[slot] = i + 1;
+    }
+  }
+
+  static boolean isLetter(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  static boolean isAngle(char c) {
+    return c == '<' || c == '>';
+  }
+
+  /**
+   * @return index of the first word starting at or after offset, fWords if none
+   */
+  int getWordAtOrAfter(int offset) {
+    int i = Arrays.binarySearch(fStarts, 0, fWords, offset);
+    return (i >= 0 ? i : -i - 1);
+  }
+
+  /**
+   * Words between two offsets, leaving out words cut by either offset (see
+   * MFSearch.isWhitespace), a negative start takes all words from the start.
+   * @return first word in range[0] and end (exclusive) in range[1]
+   */
+  void getWordsBetween(int start, int end, int[] range) {
+    if (start < 0)
+      start = 0;
+    else
+      for (; start < end; start++) {
+        if (MFSearch.isWhitespace(fData.charAt(start)))
+          break;
+      }
+    if (end >= fData.length())
+      end = fData.length();
+    else
+      for (; start < end; end--) {
+        if (MFSearch.isWhitespace(fData.charAt(end)))
+          break;
+      }
+    int first = getWordAtOrAfter(start);
+    int last = first;
+    if (start < end)
+      for (; last < fWords && fEnds[last] <= end; last++)
+        ;
+    range[0] = first;
+    range[1] = last;
+  }
+
+  /**
+   * @return true if word of this text and otherWord of other are the same ignoring case
+   */
+  boolean isSameWord(int word, TokenizedText other, int otherWord) {
+    if (fHashes[word] != other.fHashes[otherWord])
+      return false;
+    int length = fEnds[word] - fStarts[word];
+    return length == other.fEnds[otherWord] - other.fStarts[otherWord] && fData.regionMatches(true, fStarts[word], other.fData, other.fStarts[otherWord], length);
+  }
+
+  /**
+   * @return start of the first whole word at or after offset that is the same
+   *         as word, or -1
+   */
+  int indexOfWord(int word, int offset) {
+    int i = word;
+    if (fStarts[i] < offset) {
+      for (; i >= 0 && fStarts[i] < offset; i = fNextSame[i])
+        ;
+    } else {
+      for (; fPrevSame[i] >= 0 && fStarts[fPrevSame[i]] >= offset; i = fPrevSame[i])
+        ;
+    }
+    for (; i >= 0; i = fNextSame[i]) {
+      if (fWhole[i] && isSameWord(i, this, word))
+        return fStarts[i];
+    }
+    return -1;
+  }
+
+  /**
+   * @return offset of the next sentence mark at or after offset (step > 0),
+   *         or at or before it (step < 0), fData.length() or -1 if none
+   */
+  int findEndOfSentence(int offset, int step) {
+    int i = Arrays.binarySearch(fMarks, 0, fMarkCount, offset);
+    if (step > 0) {
+      if (i < 0) i = -i - 1;
+      return (i < fMarkCount ? fMarks[i] : fData.length());
+    } else {
+      if (i < 0) i = -i - 2;
+      return (i >= 0 ? fMarks[i] : -1);
+    }
+  }
+}